@@ -0,0 +1,303 @@
+import java.util.*;
+
+/**
+ * Finds matching and enclosing brackets of one type without walking the
+ * content a character at a time. <br>
+ * <br>
+ * The content is split into blocks of about {@link #BLOCK_LINES} lines. Every
+ * block knows how much it changes the nesting depth, and how far the depth
+ * dips while reading it forwards or backwards. A segment tree over the blocks
+ * then finds the first block where an unmatched bracket can be in O(log n),
+ * and only that block gets scanned. <br>
+ * <br>
+ * Built the first time it's used. An edit only rescans the blocks it touched,
+ * the blocks after it just have their first line moved by however many lines
+ * were added or removed. Blocks that grow too big or end up empty are split
+ * up again, which only moves the leaves of the tree around.
+ */
+public class BracketIndex {
+    private static final int BLOCK_LINES = 64;
+
+    private final char open, close;
+
+    private boolean built = false;
+    private int lineCount;
+    private int blocks;
+    private int[] blockStart; // First line of every block, blockStart[blocks] is lineCount
+    private int size; // Number of leaves, a power of two >= the number of blocks
+
+    // Segment tree over the blocks, node 1 is the root and node i has children
+    // 2i and 2i + 1. Depth goes up for open brackets and down for closing ones.
+    private int[] sum; // How much the depth changes
+    private int[] minPrefix; // Lowest the depth gets reading forwards (<= 0)
+    private int[] minSuffix; // Lowest the depth gets reading backwards, with closing brackets going up (<= 0)
+
+    public BracketIndex(char open, char close) {
+        this.open = open;
+        this.close = close;
+    }
+
+    /**
+     * Called after lines [start, oldEnd) were replaced by lines [start, newEnd).
+     */
+    public void update(List<String> lines, int start, int oldEnd, int newEnd) {
+        if (!built)
+            return;
+
+        int delta = newEnd - oldEnd;
+        if (blocks == 0 || lineCount + delta != lines.size()) {
+            built = false;
+            return;
+        }
+
+        // The blocks the old lines were in, they get split into blocks again
+        int first = blockOf(start);
+        int last = Math.max(first, blockOf(oldEnd - 1));
+        int from = blockStart[first];
+        int to = blockStart[last + 1] + delta;
+        int count = last - first + 1;
+        int newCount = count;
+        if (to - from < count || to - from > count * 2 * BLOCK_LINES)
+            newCount = (to - from + BLOCK_LINES - 1) / BLOCK_LINES;
+
+        if (newCount != count)
+            splice(first, count, newCount);
+        for (int block = first + newCount; block <= blocks; block++)
+            blockStart[block] += delta;
+        for (int i = 1; i < newCount; i++)
+            blockStart[first + i] = from + (int) ((long) (to - from) * i / newCount);
+        lineCount = lines.size();
+
+        for (int block = first; block < first + newCount; block++) {
+            summarizeBlock(lines, block);
+            if (newCount == count)
+                for (int node = (size + block) / 2; node >= 1; node /= 2)
+                    combine(node);
+        }
+        if (newCount != count)
+            for (int node = size - 1; node >= 1; node--)
+                combine(node);
+    }
+
+    private void build(List<String> lines) {
+        lineCount = lines.size();
+        blocks = (lineCount + BLOCK_LINES - 1) / BLOCK_LINES;
+        blockStart = new int[blocks + 1];
+        for (int block = 0; block <= blocks; block++)
+            blockStart[block] = Math.min(block * BLOCK_LINES, lineCount);
+
+        allocate(blocks);
+        for (int block = 0; block < blocks; block++)
+            summarizeBlock(lines, block);
+        for (int node = size - 1; node >= 1; node--)
+            combine(node);
+
+        built = true;
+    }
+
+    private void allocate(int blocks) {
+        size = 1;
+        while (size < blocks)
+            size *= 2;
+
+        sum = new int[size * 2];
+        minPrefix = new int[size * 2];
+        minSuffix = new int[size * 2];
+    }
+
+    // Turns the count blocks from first on into newCount blocks, keeping the
+    // ones after them as they are. The new blocks still have to be summarized
+    // and the tree combined again.
+    private void splice(int first, int count, int newCount) {
+        int newBlocks = blocks - count + newCount;
+        int after = blocks - first - count; // Blocks after the ones being replaced
+
+        int[] starts = new int[newBlocks + 1];
+        System.arraycopy(blockStart, 0, starts, 0, first + 1);
+        System.arraycopy(blockStart, first + count, starts, first + newCount, after + 1);
+
+        int[] oldSum = sum, oldMinPrefix = minPrefix, oldMinSuffix = minSuffix;
+        int oldSize = size;
+        allocate(newBlocks);
+        moveLeaves(oldSum, oldSize, sum, first, count, newCount, after);
+        moveLeaves(oldMinPrefix, oldSize, minPrefix, first, count, newCount, after);
+        moveLeaves(oldMinSuffix, oldSize, minSuffix, first, count, newCount, after);
+
+        blockStart = starts;
+        blocks = newBlocks;
+    }
+
+    private void moveLeaves(int[] from, int fromSize, int[] to, int first, int count, int newCount, int after) {
+        System.arraycopy(from, fromSize, to, size, first);
+        System.arraycopy(from, fromSize + first + count, to, size + first + newCount, after);
+    }
+
+    // The block line y is in
+    private int blockOf(int y) {
+        int low = 0, high = blocks - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockStart[middle] <= y)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    private void combine(int node) {
+        int left = node * 2, right = node * 2 + 1;
+        sum[node] = sum[left] + sum[right];
+        minPrefix[node] = Math.min(minPrefix[left], sum[left] + minPrefix[right]);
+        minSuffix[node] = Math.min(minSuffix[right], -sum[right] + minSuffix[left]);
+    }
+
+    private void summarizeBlock(List<String> lines, int block) {
+        int node = size + block;
+        int depth = 0, lowest = 0;
+        int end = blockStart[block + 1];
+        for (int y = blockStart[block]; y < end; y++) {
+            String line = lines.get(y);
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == open)
+                    depth++;
+                else if (c == close)
+                    lowest = Math.min(lowest, --depth);
+            }
+        }
+        sum[node] = depth;
+        minPrefix[node] = lowest;
+
+        depth = 0;
+        lowest = 0;
+        for (int y = end - 1; y >= blockStart[block]; y--) {
+            String line = lines.get(y);
+            for (int i = line.length() - 1; i >= 0; i--) {
+                char c = line.charAt(i);
+                if (c == close)
+                    depth++;
+                else if (c == open)
+                    lowest = Math.min(lowest, --depth);
+            }
+        }
+        minSuffix[node] = lowest;
+    }
+
+    /**
+     * Returns the position (see {@link SearchEngine#position(int, int)}) of the
+     * first closing bracket after (x, y) that isn't matched after (x, y). For an
+     * open bracket at (x, y) that's the one matching it. -1 if there isn't one.
+     */
+    public long findClose(List<String> lines, int x, int y) {
+        if (!built || lineCount != lines.size())
+            build(lines);
+
+        // The rest of the block we're in, a character at a time
+        int[] depth = { 0 };
+        int current = blockOf(y);
+        long found = scanForward(lines, x + 1, y, blockStart[current + 1], depth);
+        if (found != -1)
+            return found;
+
+        // Then straight to the block where the depth goes negative
+        int block = findForward(1, 0, size, current + 1, depth);
+        if (block == -1)
+            return -1;
+
+        return scanForward(lines, 0, blockStart[block], blockStart[block + 1], depth);
+    }
+
+    /**
+     * Returns the position of the last open bracket before (x, y) that isn't
+     * matched before (x, y). For a closing bracket at (x, y) that's the one
+     * matching it, otherwise it's the start of the range (x, y) is in. -1 if
+     * there isn't one.
+     */
+    public long findOpen(List<String> lines, int x, int y) {
+        if (!built || lineCount != lines.size())
+            build(lines);
+
+        int[] depth = { 0 };
+        int current = blockOf(y);
+        long found = scanBackward(lines, x - 1, y, blockStart[current], depth);
+        if (found != -1)
+            return found;
+
+        int block = findBackward(1, 0, size, current - 1, depth);
+        if (block == -1)
+            return -1;
+
+        int end = blockStart[block + 1] - 1;
+        return scanBackward(lines, lines.get(end).length() - 1, end, blockStart[block], depth);
+    }
+
+    // Reads from (x, y) up to line end, returns where the depth goes below 0
+    private long scanForward(List<String> lines, int x, int y, int end, int[] depth) {
+        for (; y < end; y++, x = 0) {
+            String line = lines.get(y);
+            for (int i = x; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == open)
+                    depth[0]++;
+                else if (c == close && --depth[0] < 0)
+                    return SearchEngine.position(y, i);
+            }
+        }
+
+        return -1;
+    }
+
+    // Reads backwards from (x, y) down to line start
+    private long scanBackward(List<String> lines, int x, int y, int start, int[] depth) {
+        for (; y >= start; y--, x = y >= 0 ? lines.get(y).length() - 1 : 0) {
+            String line = lines.get(y);
+            for (int i = Math.min(x, line.length() - 1); i >= 0; i--) {
+                char c = line.charAt(i);
+                if (c == close)
+                    depth[0]++;
+                else if (c == open && --depth[0] < 0)
+                    return SearchEngine.position(y, i);
+            }
+        }
+
+        return -1;
+    }
+
+    // First block >= from where the depth goes below 0, adding the blocks
+    // skipped over onto depth[0]. -1 if there isn't one.
+    private int findForward(int node, int nodeFrom, int nodeTo, int from, int[] depth) {
+        if (nodeTo <= from)
+            return -1;
+        if (nodeFrom >= from && depth[0] + minPrefix[node] >= 0) {
+            depth[0] += sum[node];
+            return -1;
+        }
+        if (nodeTo - nodeFrom == 1)
+            return nodeFrom;
+
+        int middle = (nodeFrom + nodeTo) / 2;
+        int found = findForward(node * 2, nodeFrom, middle, from, depth);
+        if (found != -1)
+            return found;
+        return findForward(node * 2 + 1, middle, nodeTo, from, depth);
+    }
+
+    // Last block <= to where the depth goes below 0 reading backwards
+    private int findBackward(int node, int nodeFrom, int nodeTo, int to, int[] depth) {
+        if (nodeFrom > to)
+            return -1;
+        if (nodeTo - 1 <= to && depth[0] + minSuffix[node] >= 0) {
+            depth[0] -= sum[node];
+            return -1;
+        }
+        if (nodeTo - nodeFrom == 1)
+            return nodeFrom;
+
+        int middle = (nodeFrom + nodeTo) / 2;
+        int found = findBackward(node * 2 + 1, middle, nodeTo, to, depth);
+        if (found != -1)
+            return found;
+        return findBackward(node * 2, nodeFrom, middle, to, depth);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * The last change made in normal mode, what . repeats. <br>
+ * <br>
+ * It's the command as {@link KeyParser} read it (the operator, the motion or
+ * text object it works on and their counts) plus whatever was typed if the
+ * command went into insert mode (cw, o, A...). The range isn't kept, it's
+ * worked out again from the motion wherever . is pressed, like vim does. The
+ * typed text is kept as one string so repeating it is one insert instead of
+ * typing every key again.
+ */
+public class Change {
+    private final int result; // What kind of command it is, see KeyParser.MOTION etc.
+    private final int count, operatorCount;
+    private final char operator, key, argument;
+    private final char register;
+    private String insertedText; // null if it didn't go into insert mode
+
+    public Change(int result, int count, char operator, int operatorCount, char key, char argument, char register) {
+        this.result = result;
+        this.count = count;
+        this.operator = operator;
+        this.operatorCount = operatorCount;
+        this.key = key;
+        this.argument = argument;
+        this.register = register;
+    }
+
+    /**
+     * Whether the command KeyParser read changes the text in normal mode (and
+     * so is something . can repeat). y and motions don't.
+     */
+    public static boolean isChange(int result, char operator, char key) {
+        switch (result) {
+            case KeyParser.MOTION:
+                return "iaIAoOsxCDpPJ".indexOf(key) != -1;
+            case KeyParser.ARGUMENT:
+                return key == 'r';
+            case KeyParser.OPERATOR_MOTION:
+            case KeyParser.OPERATOR_LINES:
+            case KeyParser.OPERATOR_ARGUMENT:
+                return operator == 'c' || operator == 'd';
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The same change with a new count, for 3. (it replaces both of the
+     * counts, so . after 2d3w with a count of 4 is d4w).
+     */
+    public Change withCount(int count) {
+        Change change = new Change(result, count, operator, 1, key, argument, register);
+        change.insertedText = insertedText;
+        return change;
+    }
+
+    public int getResult() {
+        return result;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getOperatorCount() {
+        return operatorCount;
+    }
+
+    public char getOperator() {
+        return operator;
+    }
+
+    public char getKey() {
+        return key;
+    }
+
+    public char getArgument() {
+        return argument;
+    }
+
+    public char getRegister() {
+        return register;
+    }
+
+    public String getInsertedText() {
+        return insertedText;
+    }
+
+    public void setInsertedText(String insertedText) {
+        this.insertedText = insertedText;
+    }
+}
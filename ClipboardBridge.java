@@ -0,0 +1,157 @@
+import java.awt.*;
+import java.awt.datatransfer.*;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * The system clipboard, for the "+ and "* registers. <br>
+ * <br>
+ * Reading or writing the system clipboard can take a long time with a big
+ * clipboard (the other program has to hand the whole thing over), so it's
+ * never done on the thread that draws frames. Nothing is read until "+ or "*
+ * is first used. From then on a background thread keeps what it last saw,
+ * already split into a {@link Register}, so "+p just takes that (nothing, if
+ * it's the very first "+p and the first read hasn't finished yet). <br>
+ * <br>
+ * The text is only fetched again when it could have changed: straight away
+ * when the clipboard says its flavors changed, and otherwise every
+ * {@link #POLL_INTERVAL} ms, but not while what we last wrote is still on it
+ * (we're told when another program takes it over). <br>
+ * <br>
+ * Writes ("+y) are cached straight away and handed to the clipboard in the
+ * background. Every write bumps a token, and a read that started before the
+ * latest write is thrown away so it can't bring back what was there before.
+ */
+public class ClipboardBridge implements ClipboardOwner {
+    private static final long POLL_INTERVAL = 500;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Clipboard");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static ClipboardBridge instance;
+
+    private final Clipboard clipboard; // null if there's no system clipboard (headless)
+
+    private volatile Register contents; // null until something's been read or written
+    private volatile long token = 0; // Bumped on every write
+    private String lastText; // What the clipboard had the last time it was checked, only used on the background thread
+    private long written = 0; // The token of the last write handed to the clipboard, only used on the background thread
+    private volatile boolean owner = false; // What we wrote is still on the clipboard
+    private boolean started = false;
+
+    private ClipboardBridge() {
+        Clipboard systemClipboard = null;
+        try {
+            if (!GraphicsEnvironment.isHeadless())
+                systemClipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+        } catch (HeadlessException | SecurityException e) {
+            System.out.println("No system clipboard, \"+ and \"* will only work inside the editor");
+        }
+        clipboard = systemClipboard;
+    }
+
+    /**
+     * There's only one system clipboard, so every editor shares one bridge.
+     */
+    public static synchronized ClipboardBridge getInstance() {
+        if (instance == null)
+            instance = new ClipboardBridge();
+        return instance;
+    }
+
+    /**
+     * What was on the clipboard the last time it was checked (or last
+     * written), or null if it's empty or not text. Never waits for the
+     * clipboard.
+     */
+    public Register get() {
+        if (start())
+            executor.execute(this::refresh);
+        return contents;
+    }
+
+    /**
+     * Puts {@code register} on the clipboard. It's what {@link #get()} returns
+     * from now on, the clipboard itself gets it in the background.
+     */
+    public void set(Register register) {
+        start();
+        long writeToken;
+        synchronized (this) {
+            writeToken = ++token;
+            contents = register;
+        }
+        if (clipboard == null)
+            return;
+
+        executor.execute(() -> {
+            // Joining the lines happens here too, not on the frame
+            String text = register.getText();
+            try {
+                clipboard.setContents(new StringSelection(text), this);
+                owner = true;
+                if (token == writeToken)
+                    lastText = text;
+            } catch (IllegalStateException e) {
+                System.out.println("Couldn't write to the clipboard: " + e.getMessage());
+            }
+            written = writeToken;
+        });
+    }
+
+    // Starts watching the clipboard the first time it's used. Returns false
+    // if it already was (or there's no clipboard)
+    private synchronized boolean start() {
+        if (started || clipboard == null)
+            return false;
+        started = true;
+
+        clipboard.addFlavorListener(event -> executor.execute(this::refresh));
+        executor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void lostOwnership(Clipboard clipboard, Transferable contents) {
+        owner = false;
+        executor.execute(this::refresh);
+    }
+
+    private void poll() {
+        // Nobody else has written to it since we did, so it's still lastText
+        if (owner)
+            return;
+        refresh();
+    }
+
+    private void refresh() {
+        long readToken = token;
+        // A write is still waiting its turn, the clipboard has the old text
+        if (written != readToken)
+            return;
+        String text;
+        try {
+            if (!clipboard.isDataFlavorAvailable(DataFlavor.stringFlavor))
+                return;
+            text = (String) clipboard.getData(DataFlavor.stringFlavor);
+        } catch (UnsupportedFlavorException | IOException | IllegalStateException e) {
+            // Another program has it open, or it's not text after all. Try again next time
+            return;
+        }
+
+        if (text == null || text.equals(lastText))
+            return;
+
+        Register register = Register.fromText(text);
+        synchronized (this) {
+            // Something was yanked to it while this was reading, that's newer
+            if (token != readToken)
+                return;
+            contents = register;
+        }
+        lastText = text;
+    }
+}
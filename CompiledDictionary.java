@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import library.core.Helper;
+
+/**
+ * Read-only spell check dictionary backed by a precompiled image of
+ * dictionary.txt. <br>
+ * <br>
+ * The image is a sorted list of unique words packed one after another with a
+ * table of offsets in front, so a lookup is a binary search straight over the
+ * memory mapped file. It gets (re)compiled the first time the program runs
+ * after dictionary.txt changes, and every editor shares the same instance.
+ * <br>
+ * <br>
+ * Layout: magic, version, source length, source last modified, word count,
+ * (word count + 1) char offsets, then the words as UTF-16 chars.
+ */
+public class CompiledDictionary {
+    private static final String SOURCE_NAME = "dictionary.txt";
+    private static final String IMAGE_NAME = "dictionary.bin";
+
+    private static final int MAGIC = 0x564d4449; // "VMDI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private static CompiledDictionary instance;
+
+    private final ByteBuffer buffer;
+    private final int wordCount;
+    private final int wordsStart; // byte position of the first char
+
+    private CompiledDictionary(ByteBuffer buffer) {
+        this.buffer = buffer;
+        wordCount = buffer.getInt(HEADER_SIZE - 4);
+        wordsStart = HEADER_SIZE + (wordCount + 1) * 4;
+    }
+
+    /**
+     * Returns the process wide dictionary, compiling it first if needed.
+     */
+    public static synchronized CompiledDictionary getInstance() {
+        if (instance == null)
+            instance = load(new File(SOURCE_NAME), new File(IMAGE_NAME));
+        return instance;
+    }
+
+    private static CompiledDictionary load(File source, File image) {
+        try {
+            if (!isUpToDate(source, image))
+                compile(source, image);
+
+            try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+                return new CompiledDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        } catch (IOException e) {
+            // Can't write or map the image (read only folder etc.), so keep it on the heap
+            System.out.println("Unable to map dictionary: " + e.getMessage());
+            return new CompiledDictionary(build(readWords(source), source));
+        }
+    }
+
+    private static boolean isUpToDate(File source, File image) {
+        if (!image.exists())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(image))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == source.length()
+                    && in.readLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void compile(File source, File image) throws IOException {
+        ByteBuffer compiled = build(readWords(source), source);
+
+        File temp = new File(image.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (compiled.hasRemaining())
+                channel.write(compiled);
+            channel.force(true);
+        }
+
+        // Swap it in all at once, a crash halfway must never leave a partial image to map
+        try {
+            Files.move(temp.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String[] readWords(File source) {
+        TreeSet<String> words = new TreeSet<>();
+        if (source.exists()) {
+            for (String line : Helper.loadStrings(source.getPath())) {
+                line = line.trim().toLowerCase();
+                if (line.length() > 0)
+                    words.add(line);
+            }
+        }
+
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static ByteBuffer build(String[] words, File source) {
+        int chars = 0;
+        for (String word : words)
+            chars += word.length();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (words.length + 1) * 4 + chars * 2);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(source.length());
+        buffer.putLong(source.lastModified());
+        buffer.putInt(words.length);
+
+        int offset = 0;
+        for (String word : words) {
+            buffer.putInt(offset);
+            offset += word.length();
+        }
+        buffer.putInt(offset);
+
+        for (String word : words)
+            for (int i = 0; i < word.length(); i++)
+                buffer.putChar(word.charAt(i));
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns true if {@code word} is in the dictionary. Does not allocate.
+     */
+    public boolean contains(CharSequence word) {
+        int low = 0;
+        int high = wordCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, word);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return true;
+        }
+
+        return false;
+    }
+
+    // Compares the word at index to word, the same way String.compareTo does
+    private int compare(int index, CharSequence word) {
+        int start = buffer.getInt(HEADER_SIZE + index * 4);
+        int length = buffer.getInt(HEADER_SIZE + (index + 1) * 4) - start;
+        int position = wordsStart + start * 2;
+
+        int limit = Math.min(length, word.length());
+        for (int i = 0; i < limit; i++) {
+            char c = buffer.getChar(position + i * 2);
+            if (c != word.charAt(i))
+                return c - word.charAt(i);
+        }
+
+        return length - word.length();
+    }
+}
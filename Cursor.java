@@ -46,236 +46,373 @@ public class Cursor extends PComponent implements EventIgnorer {
     }
 
     public void left() {
+        left(1);
+    }
+
+    /**
+     * Moves left {@code count} characters, wrapping onto the end of the line
+     * above. Whole lines are skipped in one step. Returns false if the cursor
+     * couldn't move at all.
+     */
+    public boolean left(int count) {
         if (x == 0 && y == 0)
-            return;
+            return false;
 
-        if (x == 0) {
-            y--;
-            x = getEndOfLine();
-            return;
+        while (count > 0 && !(x == 0 && y == 0)) {
+            if (x == 0) {
+                y--;
+                x = getEndOfLine();
+                count--;
+                continue;
+            }
+
+            int step = min(count, x);
+            x -= step;
+            count -= step;
         }
 
-        x--;
+        return true;
     }
 
     public void right() {
+        right(1);
+    }
+
+    /**
+     * Moves right {@code count} characters, wrapping onto the start of the line
+     * below.
+     */
+    public boolean right(int count) {
         if (isEndOfLine() && y == content.size() - 1)
-            return;
+            return false;
 
-        if (isEndOfLine()) {
-            y++;
-            x = 0;
-            return;
+        while (count > 0) {
+            int room = getEndOfLine() - x;
+            if (room <= 0) {
+                if (y == content.size() - 1)
+                    break;
+                y++;
+                x = 0;
+                count--;
+                continue;
+            }
+
+            int step = min(count, room);
+            x += step;
+            count -= step;
         }
 
-        x++;
+        return true;
     }
 
     public void up() {
+        up(1);
+    }
+
+    public boolean up(int count) {
         if (y == 0)
-            return;
+            return false;
 
-        y--;
+        y = max(y - count, 0);
         if (x > getEndOfLine())
             x = getEndOfLine();
+        return true;
     }
 
     public void down() {
+        down(1);
+    }
+
+    public boolean down(int count) {
         if (y == content.size() - 1)
-            return;
+            return false;
 
-        y++;
+        y = min(y + count, content.size() - 1);
         if (x > getEndOfLine())
             x = getEndOfLine();
+        return true;
     }
 
-    public void constrain() {
-        y = min(y, content.size() - 1);
-        y = max(y, 0);
-        x = min(x, getEndOfLine());
-        x = max(x, 0);
-    }
+    // The counted word motions below walk the line's token spans (see runEnd
+    // and runStart) in one loop, taking one off the count at every word they
+    // reach. They stop early at the start or end of the content and return
+    // false if they didn't move at all.
 
-    public void findLastNonWhitespace() {
-        x = findLastNonWhitespace(content.get(y));
-    }
+    public boolean nextWord(int count) {
+        boolean moved = false;
+        String line = content.get(y);
+        int end = getEndOfLine();
+        for (; count > 0; count--) {
+            if (x >= end || line.isEmpty()) {
+                if (y == content.size() - 1)
+                    break;
+                y++;
+                line = content.get(y);
+                end = getEndOfLine();
+                x = findFirstNonWhitespace(line);
+                moved = true;
+                continue;
+            }
 
-    public void findFirstNonWhitespace() {
-        x = findFirstNonWhitespace(content.get(y));
+            // Keep going until I reach a new char type, then past any spaces
+            x = min(runEnd(x, y), end);
+            if (getCharType(x, y) == CharType.SPACE)
+                x = skipSpaces(line, x);
+            moved = true;
+        }
+
+        return moved;
     }
 
-    public void nextWord() {
-        if (isEndOfLine() && y == content.size() - 1)
-            return;
+    public boolean previousWord(int count) {
+        boolean moved = false;
+        for (; count > 0 && !(x == 0 && y == 0); count--) {
+            moved = true;
+            if (x == 0) {
+                y--;
+                findLastNonWhitespace();
+                continue;
+            }
 
-        if (isEndOfLine()) {
-            y++;
-            findFirstNonWhitespace();
-            return;
-        }
+            // In the middle of a word, go to its first char
+            if (getCharType(x - 1, y) == getCharType(x, y)) {
+                x = runStart(x, y);
+                continue;
+            }
 
-        // Keep going until I reach a new char type
-        CharType type = getCharType(x, y);
-        while (isInLine() && getCharType(x, y) == type)
-            x++;
+            // Otherwise go left over my run and the spaces before the word
+            // before it, then to its start
+            x = skipRunLeft(x, y);
+            if (getCharType(x, y) == CharType.SPACE)
+                x = skipRunLeft(x, y);
+            x = runStart(x, y);
+        }
 
-        // If I'm on a space, move forward until I reach a non-space
-        if (getCharType(x, y) == CharType.SPACE)
-            x += findFirstNonWhitespace(content.get(y).substring(x));
+        return moved;
     }
 
-    public void previousWord() {
-        if (x == 0 && y == 0)
-            return;
+    public boolean nextWordWithPunctuation(int count) {
+        boolean moved = false;
+        String line = content.get(y);
+        int end = getEndOfLine();
+        for (; count > 0; count--) {
+            if (x >= end || line.isEmpty()) {
+                if (y == content.size() - 1)
+                    break;
+                y++;
+                line = content.get(y);
+                end = getEndOfLine();
+                x = findFirstNonWhitespace(line);
+                moved = true;
+                continue;
+            }
 
-        if (x == 0 && y > 0) {
-            y--;
-            findLastNonWhitespace();
-            return;
+            int previousX = x;
+            if (getChar(x, y) == ' ') {
+                x = skipSpaces(line, x);
+            } else {
+                int spaceIndex = line.indexOf(' ', x);
+                x = spaceIndex == -1 ? end : spaceIndex + 1;
+            }
+
+            // Only spaces left on the line
+            if (x == previousX)
+                break;
+            moved = true;
         }
 
-        boolean middleOfWord = false;
-        if (getCharType(x - 1, y) == getCharType(x, y))
-            middleOfWord = true;
+        return moved;
+    }
 
-        if (middleOfWord) {
-            // Keep going to the left until reached a different char type
-            CharType type = getCharType(x, y);
-            while (x > 0 && getCharType(x, y) == type)
-                x--;
+    public boolean previousWordWithPunctuation(int count) {
+        boolean moved = false;
+        for (; count > 0 && !(x == 0 && y == 0); count--) {
+            moved = true;
+            if (x == 0) {
+                y--;
+                findLastNonWhitespace();
+                continue;
+            }
 
-            if (x != 0)
-                x++; // Move back one char so that I'm on the first char of the word
-            return;
+            // Search before x, or before x - 1 if I'm on or right after a space
+            String line = content.get(y);
+            int from = getChar(x, y) == ' ' || line.charAt(x - 1) == ' ' ? x - 2 : x - 1;
+            x = from < 0 ? 0 : line.lastIndexOf(' ', from) + 1;
         }
 
-        // Keep going to the left until I reach a new type
-        CharType type = getCharType(x, y);
-        while (x > 0 && getCharType(x, y) == type)
-            x--;
+        return moved;
+    }
+
+    public boolean endOfWord(int count) {
+        boolean moved = false;
+        String line = content.get(y);
+        int end = getEndOfLine();
+        for (; count > 0; count--) {
+            if (x >= end || line.isEmpty()) {
+                if (y == content.size() - 1)
+                    break;
+                y++;
+                line = content.get(y);
+                end = getEndOfLine();
+                x = findFirstNonWhitespace(line);
+                moved = true;
+                continue;
+            }
+
+            moved = true;
 
-        type = getCharType(x, y);
-        if (type == CharType.SPACE) {
-            // Keep going to the left until I reach a new type
-            while (x > 0 && getCharType(x, y) == type)
+            // If the char to my right is not my type, I'm at the end of a word
+            // and should first skip to the next one
+            if (getCharType(x, y) != getCharType(x + 1, y)) {
+                x = min(runEnd(x, y), end);
+                if (getCharType(x, y) == CharType.SPACE)
+                    x = skipSpaces(line, x);
+                if (x >= end)
+                    continue;
+            }
+
+            // Go to the end of the run. Don't go back one only if I'm at the
+            // end of the line and still on the same type
+            CharType type = getCharType(x, y);
+            x = min(runEnd(x, y), end);
+            if (!(x >= end && getCharType(x, y) == type))
                 x--;
         }
 
-        // Go to the start of my new word
-        type = getCharType(x, y);
-        while (x > 0 && getCharType(x, y) == type)
-            x--;
-
-        if (x > 0)
-            x += 1;
+        return moved;
     }
 
-    public void nextWordWithPunctuation() {
-        if (isEndOfLine() && y == content.size() - 1)
-            return;
+    public boolean endOfWordWithPunctuation(int count) {
+        boolean moved = false;
+        String line = content.get(y);
+        int end = getEndOfLine();
+        for (; count > 0; count--) {
+            if (x >= end || line.isEmpty()) {
+                if (y == content.size() - 1)
+                    break;
+                y++;
+                line = content.get(y);
+                end = getEndOfLine();
+                x = findFirstNonWhitespace(line);
+                moved = true;
+                continue;
+            }
 
-        if (isEndOfLine()) {
-            y++;
-            findFirstNonWhitespace();
-            return;
-        }
+            int previousX = x;
 
-        if (content.get(y).charAt(x) == ' ') {
-            x += findFirstNonWhitespace(content.get(y).substring(x));
-            return;
+            // If the char to my right is a space, I'm at the end of a word and
+            // should skip to the next one
+            if (getCharType(x + 1, y) == CharType.SPACE) {
+                if (getChar(x, y) == ' ') {
+                    x = skipSpaces(line, x);
+                } else {
+                    int spaceIndex = line.indexOf(' ', x);
+                    x = spaceIndex == -1 ? end : spaceIndex + 1;
+                }
+            }
+
+            // Keep going until I reach a space, then go back one unless I hit
+            // the end of the line
+            if (x < end) {
+                while (x < end && getCharType(x, y) != CharType.SPACE)
+                    x++;
+                if (x < end)
+                    x--;
+            }
+
+            if (x == previousX)
+                break;
+            moved = true;
         }
 
-        int spaceIndex = content.get(y).indexOf(' ', x);
-        if (spaceIndex == -1)
-            x = content.get(y).length();
-        else
-            x = spaceIndex + 1;
+        return moved;
     }
 
-    public void previousWordWithPunctuation() {
-        if (x == 0 && y == 0)
-            return;
+    // First non-whitespace index from x on, or x if the rest of the line is
+    // whitespace
+    private int skipSpaces(String line, int x) {
+        for (int i = x; i < line.length(); i++)
+            if (!Character.isWhitespace(line.charAt(i)))
+                return i;
+        return x;
+    }
 
-        if (x == 0 && y > 0) {
-            y--;
-            findLastNonWhitespace();
-            return;
+    // Index after the run of characters of the same type as the one at x. Goes
+    // a whole span of the line's tokens at a time, links a character at a time
+    // since motions stop at their punctuation.
+    private int runEnd(int x, int y) {
+        CharType type = getCharType(x, y);
+        int[] tokens = editor.getTokens(y);
+        String line = content.get(y);
+        while (x < line.length() && getCharType(x, y) == type) {
+            int token = LineTokenizer.tokenAt(tokens, x);
+            if (LineTokenizer.type(tokens, token) == LineTokenizer.URL)
+                x++;
+            else
+                x = LineTokenizer.end(tokens, token);
         }
 
-        // Default substring is from 0 to x (which works good if I'm in the middle of a
-        // word)
-        String substring = content.get(y).substring(0, x);
-
-        // If I'm a space or right next to a space, I need to substring to x - 1
-        if (content.get(y).charAt(x) == ' ' || content.get(y).charAt(x - 1) == ' ')
-            substring = content.get(y).substring(0, x - 1);
-
-        int spaceIndex = substring.lastIndexOf(' ');
-        if (spaceIndex == -1)
-            x = 0;
-        else
-            x = spaceIndex + 1;
+        return x;
     }
 
-    public void endOfWord() {
-        if (isEndOfLine() && y == content.size() - 1)
-            return;
-
-        if (isEndOfLine()) {
-            y++;
-            findFirstNonWhitespace();
-            return;
+    // First index of the run of characters of the same type as the one at x
+    private int runStart(int x, int y) {
+        CharType type = getCharType(x, y);
+        int[] tokens = editor.getTokens(y);
+        while (x > 0 && getCharType(x - 1, y) == type) {
+            int token = LineTokenizer.tokenAt(tokens, x - 1);
+            if (LineTokenizer.type(tokens, token) == LineTokenizer.URL)
+                x--;
+            else
+                x = LineTokenizer.start(tokens, token);
         }
 
-        // If the char to my right is not my type, I'm at the end of a word and should
-        // first skip to it
-        if (getCharType(x, y) != getCharType(x + 1, y))
-            nextWord();
+        return x;
+    }
 
-        // If I'm at the end of the line after moving, I'm done
-        if (isEndOfLine())
-            return;
+    // Where moving left over the run at x stops: the last character before
+    // it, or 0
+    private int skipRunLeft(int x, int y) {
+        return max(runStart(x, y) - 1, 0);
+    }
 
-        // Keep going until I reach a new char type
-        CharType type = getCharType(x, y);
-        while (isInLine() && getCharType(x, y) == type)
-            right();
+    public void constrain() {
+        y = min(y, content.size() - 1);
+        y = max(y, 0);
+        x = min(x, getEndOfLine());
+        x = max(x, 0);
+    }
 
-        // Go back one. Don't only if I'm at the end of the line and on the same type
-        if (!(isEndOfLine() && getCharType(x, y) == type))
-            left();
+    public void findLastNonWhitespace() {
+        x = findLastNonWhitespace(content.get(y));
     }
 
-    public void endOfWordWithPunctuation() {
-        if (isEndOfLine() && y == content.size() - 1)
-            return;
+    public void findFirstNonWhitespace() {
+        x = findFirstNonWhitespace(content.get(y));
+    }
 
-        if (isEndOfLine()) {
-            y++;
-            findFirstNonWhitespace();
-            return;
-        }
+    public void nextWord() {
+        nextWord(1);
+    }
 
-        // If the char to my right is a space, I'm at the end of a word and should skip
-        // to the next one
-        if (getCharType(x + 1, y) == CharType.SPACE) {
-            nextWordWithPunctuation();
-        }
+    public void previousWord() {
+        previousWord(1);
+    }
 
-        // If I'm at the end of the line after moving, I'm done
-        if (isEndOfLine())
-            return;
+    public void nextWordWithPunctuation() {
+        nextWordWithPunctuation(1);
+    }
 
-        // Keep going until I reach a space
-        while (isInLine() && getCharType(x, y) != CharType.SPACE)
-            x++;
+    public void previousWordWithPunctuation() {
+        previousWordWithPunctuation(1);
+    }
 
-        // If I'm at the end of the line, I'm done
-        if (isEndOfLine())
-            return;
+    public void endOfWord() {
+        endOfWord(1);
+    }
 
-        // Go back one
-        x--;
+    public void endOfWordWithPunctuation() {
+        endOfWordWithPunctuation(1);
     }
 
     /**
@@ -288,30 +425,14 @@ public class Cursor extends PComponent implements EventIgnorer {
      * running this function with the arg '(' would move the cursor to the "("
      */
     public void startOfRange(char openingBracket) {
-        PVector startingPos = toPVector();
-
-        char closingBracket = getMatchingBracket(openingBracket);
-        int brackets = -1; // -1 for closing, 1 for opening, stop when 0 && on opening bracket
-        // Start at -1 so that when we find the opening bracket, we're at 0
-        // very dangerous
-        while (true) {
-            char currentChar = getCurrentChar();
-            if (currentChar == openingBracket)
-                brackets++;
-            else if (currentChar == closingBracket && !toPVector().equals(startingPos)) // don't count the starting
-                                                                                        // closing bracket
-                brackets--;
-
-            if (brackets == 0 && currentChar == openingBracket)
-                return;
+        if (getCurrentChar() == openingBracket)
+            return;
 
-            PVector previousPos = toPVector();
-            left();
-            // At the start of the file, didn't find it
-            if (previousPos.equals(toPVector())) {
-                setPVector(startingPos);
-                return;
-            }
+        // Doesn't move if we aren't in a range
+        long start = editor.getBracketIndex(openingBracket).findOpen(content, x, y);
+        if (start != -1) {
+            x = SearchEngine.column(start);
+            y = SearchEngine.line(start);
         }
     }
 
@@ -345,22 +466,6 @@ public class Cursor extends PComponent implements EventIgnorer {
             right();
     }
 
-    public void deleteCurrentCharacter() {
-        if ((!onCharacter() && x != 0) || x >= content.get(y).length())
-            return;
-
-        String line = content.get(y);
-        content.set(y, line.substring(0, x) + line.substring(x + 1));
-    }
-
-    public void deleteToLineEnd() {
-        if (isEndOfLine())
-            return;
-
-        String line = content.get(y);
-        content.set(y, line.substring(0, x));
-    }
-
     public void newLineBelow() {
         content.add(y + 1, "");
         y++;
@@ -373,75 +478,66 @@ public class Cursor extends PComponent implements EventIgnorer {
     }
 
     public void findMatchingBracket() {
-        BracketType bracketType = getBracketType(x, y);
-        char bracketChar = getCurrentChar();
-        if (bracketChar == Character.MIN_VALUE)
+        if (getBracketType(x, y) == BracketType.NONE)
             return;
-        boolean isOpeningBracket = isOpeningBracket(bracketChar);
-        int bracketCount = isOpeningBracket ? 1 : -1;
-
-        int initialX = x;
-        int initialY = y;
-        boolean firstRound = true;
-        while (bracketCount != 0) {
-            BracketType currentBracketType = getBracketType(x, y);
-            if (currentBracketType == bracketType) {
-                if (firstRound) {
-                    firstRound = false;
-                } else {
-                    if (isOpeningBracket(content.get(y).charAt(x)))
-                        bracketCount++;
-                    else
-                        bracketCount--;
-                }
-            }
-
-            // We found the matching bracket
-            if (bracketCount == 0)
-                return;
-
-            int previousX = x;
-            int previousY = y;
-            if (isOpeningBracket)
-                right();
-            else
-                left();
-
-            if (x == previousX && y == previousY) {
-                x = initialX;
-                y = initialY;
-                return;
-            }
 
+        char bracket = getCurrentChar();
+        BracketIndex index = editor.getBracketIndex(bracket);
+        long match = isOpeningBracket(bracket) ? index.findClose(content, x, y) : index.findOpen(content, x, y);
+        if (match != -1) {
+            x = SearchEngine.column(match);
+            y = SearchEngine.line(match);
         }
     }
 
-    public void pasteAfter() {
-        String data = getClipboardContents();
-        if (data == null)
+    public void pasteAfter(Register register) {
+        if (!register.isLinewise()) {
+            pasteCharacters(register.getLines(), onCharacter() ? x + 1 : x);
             return;
-        String[] lines = data.split("\n");
-        for (int i = 0; i < lines.length; i++) {
-            content.add(y + i + 1, lines[i]);
         }
-        y += lines.length;
+
+        // One addAll shifts the lines below once, instead of once per pasted line
+        List<String> lines = register.getLines();
+        content.addAll(y + 1, lines);
+        y += lines.size();
         x = getEndOfLine();
     }
 
-    public void pasteBefore() {
-        String data = getClipboardContents();
-        if (data == null)
+    public void pasteBefore(Register register) {
+        if (!register.isLinewise()) {
+            pasteCharacters(register.getLines(), x);
             return;
-        String[] lines = data.split("\n");
-        for (int i = 0; i < lines.length; i++) {
-            int index = y - (lines.length - i);
-            index = max(0, index);
-            content.add(index, lines[i]);
         }
-        y += lines.length - 1;
+
+        List<String> lines = register.getLines();
+        content.addAll(y, lines);
+        y += lines.size() - 1;
         x = getEndOfLine();
     }
 
+    // Puts characterwise text into the line at x. The cursor ends up on the last
+    // character pasted, or at the start if it was more than one line (like vim)
+    private void pasteCharacters(List<String> lines, int x) {
+        String line = content.get(y);
+        x = min(x, line.length());
+        String before = line.substring(0, x);
+        String after = line.substring(x);
+
+        if (lines.size() == 1) {
+            content.set(y, before + lines.get(0) + after);
+            this.x = max(x + lines.get(0).length() - 1, 0);
+            return;
+        }
+
+        List<String> pasted = new ArrayList<>(lines);
+        int last = pasted.size() - 1;
+        pasted.set(0, before + pasted.get(0));
+        pasted.set(last, pasted.get(last) + after);
+        content.set(y, pasted.get(0));
+        content.addAll(y + 1, pasted.subList(1, pasted.size()));
+        this.x = x;
+    }
+
     public void joinLines() {
         if (y >= content.size() - 1)
             return;
@@ -478,18 +574,30 @@ public class Cursor extends PComponent implements EventIgnorer {
     }
 
     public CharType getCharType(int x, int y) {
-        if (y >= content.size() || y < 0 || x >= content.get(y).length() || x < 0 || !onCharacter())
+        if (y >= content.size() || y < 0 || x >= content.get(y).length() || x < 0)
             return null;
-        char c = getChar(x, y);
 
-        if (Character.isLetter(c))
-            return CharType.LETTER;
-        if (Character.isDigit(c))
-            return CharType.NUMBER;
-        if (c == ' ')
-            return CharType.SPACE;
+        int[] tokens = editor.getTokens(y);
+        int type = LineTokenizer.type(tokens, LineTokenizer.tokenAt(tokens, x));
+        // Links are one token, but motions still stop at their punctuation
+        if (type == LineTokenizer.URL)
+            type = LineTokenizer.classify(content.get(y).charAt(x));
+
+        return toCharType(type);
+    }
 
-        return CharType.PUNCTUATION;
+    private CharType toCharType(int tokenType) {
+        switch (tokenType) {
+            case LineTokenizer.WORD:
+                return CharType.LETTER;
+            case LineTokenizer.NUMBER:
+                return CharType.NUMBER;
+            case LineTokenizer.WHITESPACE:
+            case LineTokenizer.TAB:
+                return CharType.SPACE;
+            default:
+                return CharType.PUNCTUATION;
+        }
     }
 
     private BracketType getBracketType(int x, int y) {
@@ -539,7 +647,7 @@ public class Cursor extends PComponent implements EventIgnorer {
     public boolean isEndOfLine() {
         if (content.get(y).length() == 0)
             return true;
-        return x == getEndOfLine();
+        return x >= getEndOfLine();
     }
 
     private boolean isInLine() {
@@ -564,20 +672,13 @@ public class Cursor extends PComponent implements EventIgnorer {
     }
 
     public boolean onCharacter() {
-        try {
-            content.get(y).charAt(x);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return y >= 0 && y < content.size() && x >= 0 && x < content.get(y).length();
     }
 
     private char getChar(int x, int y) {
-        try {
-            return content.get(y).charAt(x);
-        } catch (Exception e) {
+        if (y < 0 || y >= content.size() || x < 0 || x >= content.get(y).length())
             return Character.MIN_VALUE;
-        }
+        return content.get(y).charAt(x);
     }
 
     public char getCurrentChar() {
@@ -646,8 +747,23 @@ public class Cursor extends PComponent implements EventIgnorer {
     }
 
     public boolean isOnLink() {
-        String word = getWordWithPunctuation();
-        return isValidURL(word);
+        if (!onCharacter())
+            return false;
+
+        int[] tokens = editor.getTokens(y);
+        return LineTokenizer.type(tokens, LineTokenizer.tokenAt(tokens, x)) == LineTokenizer.URL;
+    }
+
+    /**
+     * Returns the link under the cursor, or an empty string if there isn't one.
+     */
+    public String getLink() {
+        if (!isOnLink())
+            return "";
+
+        int[] tokens = editor.getTokens(y);
+        int token = LineTokenizer.tokenAt(tokens, x);
+        return content.get(y).substring(LineTokenizer.start(tokens, token), LineTokenizer.end(tokens, token));
     }
 
     private PVector getTextPosition(int x, int y) {
@@ -1,6 +1,5 @@
 import java.io.*;
 import java.util.*;
-import java.awt.AWTEvent;
 
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
@@ -34,6 +33,7 @@ class Editor extends PComponent {
     // Visual mode
     private ArrayList<PVector> visualEndpoints = new ArrayList<>();
     private int visualSelectionIndex = 0;
+    private boolean visualLines = false; // Made with V, so it's whole lines
 
     private boolean showLineNumbers = true;
     private boolean relativeLineNumbers = true;
@@ -57,45 +57,106 @@ class Editor extends PComponent {
 
     // Motions
     private String motion = "";
-    private String previousMotion = "";
 
-    private char[] operatorsNormal = { 'c', 'd', 'y', 'r' };
-    private char[] operatorsVisual = { 'i', 'a', 'r' };
-    private char[] operatorsGeneric = { 'f', 'F', 'q', '@', 'g' }; // TODO - add g, <, >, z
+    // .
+    private Change lastChange; // What . repeats, null until something's been changed
+    private Change insertChange; // A change that went into insert mode, it's finished when insert mode ends
+
+    // Built in keys, they go into the keymap when the editor starts (see defineKeys())
+    private char[] operatorsNormal = { 'c', 'd', 'y' };
+
+    // Keys that take the key typed after them
+    private char[] argumentKeysNormal = { 'r' };
+    private char[] argumentKeysVisual = { 'i', 'a', 'r' };
+    private char[] argumentKeysGeneric = { 'f', 'F', 't', 'T', 'q', '@', 'g' }; // TODO - add <, >, z
 
     private char[] motionsNormal = { 'i', 'a', 'C', 'D', 's', 'p', 'P', 'x', 'o', 'O', 'J' };
     private char[] motionsVisual = { 'c', 'd', 'C', 'D', 's', 'p', 'P', 'x', 'o', 'O', 'J', 'v', 'y' };
     private char[] motionsGeneric = { 'I', 'A', 'w', 'b', 'W', 'B', 'e', 'E', 'h', 'j', 'k', 'l', '%', '0', '_', '^',
-            '$', 'G', '.', 'u', 'q' };
+            '$', 'G', '.', 'u', 'n', 'N', '{', '}', '(', ')', '*', '#' };
+
+    private char[] commands = { ':', '/', '?' };
 
-    private char[] commands = { ':', '/', '?', '*' };
+    // Motions (besides the ones motionRange() works out itself) that can follow c, d and y
+    private static final String OPERATOR_MOTIONS = "bBeE%0^{}()nN";
+
+    private Keymap keymap = new Keymap();
+    private KeyParser keyParser = new KeyParser();
+
+    // :map
+    private static final int MAX_MAPPING_DEPTH = 1000; // Like vim's maxmapdepth
+    private int mappingDepth = 0;
+    private boolean mappingFailed = false; // Hit MAX_MAPPING_DEPTH, the rest of the keys are dropped
+    private boolean noremap = false; // Running the keys of a :noremap mapping
+    private static final String[] MAP_COMMANDS = { "map", "nmap", "vmap", "xmap", "noremap", "nnoremap", "vnoremap",
+            "xnoremap", "unmap", "nunmap", "vunmap", "xunmap" };
 
-    private char[] validSecondOperators = { 'i', 'a' }; // diw or daw, middle i or a is valid
     // TODO #15 add support for ' and " for motions like vi{ etc.
     private char[] validRangeOperators = { '(', ')', '[', ']', '{', '}', '<', '>' }; // va{ etc.
 
+    // Registers
+    private Registers registers = new Registers();
+    private char register = 0; // The one typed before the command that's running ("a), 0 if there wasn't one
+    private StringBuilder insertedText = new StringBuilder(); // What's been typed since insert mode started, for ".
+    private int insertCount = 1; // 3i, 5o, the typed text goes in this many times when insert mode ends
+    private boolean insertLines = false; // The count was for o or O, so every copy is on its own line
+    private static final int MAX_INSERT_LENGTH = Integer.MAX_VALUE - 8; // About the longest a String can be
+
     // Macros
-    private HashMap<Character, List<AWTEvent>> macros = new HashMap<>();
+    private static final int MAX_MACRO_KEYS = 10000000; // Stops a macro that keeps calling itself without failing
     private char previousMacro = ' ';
     private boolean recordingMacro = false;
-    private List<AWTEvent> macro = new ArrayList<>();
+    private List<KeyStroke> macro = new ArrayList<>();
     private char macroKey = ' ';
+    private ArrayDeque<MacroFrame> macroFrames; // The @s still running, innermost first, null if no macro is running
+
+    // What the content was before the key press that's running, and whether it
+    // already changed since (a macro catches the indexes up after every key)
+    private ArrayList<String> previousContent = new ArrayList<>();
+    private boolean changedSincePress = false;
+
+    // Set while feedKeys is running keys that weren't actually typed
+    private boolean feedingKeys = false;
+    private boolean motionFailed = false; // The last counted motion couldn't move (j on the last line etc.)
+    private static final List<KeyStroke> ESCAPE = KeyStroke.parse("<Esc>");
 
     // Dictionary
-    private ArrayList<String> dictionary;
+    private CompiledDictionary dictionary;
+    private UserDictionary userDictionary;
     private boolean spellCheckEnabled = true;
 
+    // Shared by rendering, motions and spell check
+    private LineTokenizer tokenizer = new LineTokenizer(this);
+
+    // Search
+    private SearchEngine search;
+    private boolean searchForward = true;
+    private IncrementalSearch incrementalSearch; // While typing /pattern
+    private SearchEngine highlightSearch; // Matches stay highlighted until :noh
+    private MatchIndex matchIndex; // Every match of the last search, for n/N
+    private WordIndex wordIndex; // Which lines every word is on, for *, # and completion
+    private TrigramIndex trigramIndex; // Only for big files, and only until they're edited
+    private HashMap<Character, BracketIndex> bracketIndexes = new HashMap<>(); // For %, vi{ etc.
+    private ParagraphIndex paragraphs = new ParagraphIndex(); // For {, }, (, ), ip and ap
+
+    // Ctrl-N/Ctrl-P completion, the first entry is what was typed
+    private List<String> completions;
+    private int completionIndex;
+    private int completionStart; // x where the word being completed starts
+
     public Editor(Sketch sketch) {
         this.sketch = sketch;
 
         content = new ArrayList<>();
         content.add("");
         cursor = new Cursor(this);
+        wordIndex = new WordIndex(content);
 
         history = new ArrayList<>();
         pushToHistory();
 
         readProperties();
+        defineKeys();
 
         mode = Mode.NORMAL;
 
@@ -122,7 +183,8 @@ class Editor extends PComponent {
         } catch (Exception e) {
         }
 
-        dictionary = new ArrayList<String>(Arrays.asList(loadStrings("dictionary.txt"))); // awful for performance
+        dictionary = CompiledDictionary.getInstance();
+        userDictionary = new UserDictionary();
     }
 
     private void readProperties() {
@@ -160,6 +222,14 @@ class Editor extends PComponent {
         return mode;
     }
 
+    /**
+     * Returns the tokens of line y (see {@link LineTokenizer}). Cached until the
+     * line changes.
+     */
+    public int[] getTokens(int y) {
+        return tokenizer.getTokens(y, content.get(y));
+    }
+
     private void pushToHistory() {
         historyIndex++;
         // history.add(max(historyIndex, 0), new ArrayList<>(content));
@@ -206,6 +276,8 @@ class Editor extends PComponent {
                 int y = parseInt(cursor.y);
                 if (x == 0 && y == 0)
                     return;
+                if (insertedText.length() > 0)
+                    insertedText.setLength(insertedText.length() - 1);
 
                 if (x == 0) {
                     int originalLength = content.get(y - 1).length();
@@ -227,6 +299,7 @@ class Editor extends PComponent {
                 content.set(previousY, content.get(previousY).substring(0, previousX));
                 cursor.y++;
                 cursor.x = 0;
+                insertedText.append('\n');
                 return;
             case "Tab":
                 keyToWrite = '\t';
@@ -248,14 +321,24 @@ class Editor extends PComponent {
         int y = parseInt(cursor.y);
         content.set(y, content.get(y).substring(0, x) + keyToWrite + content.get(y).substring(x));
         cursor.x++;
+        insertedText.append(keyToWrite);
 
         fileSaved = false;
     }
 
     public void handleInsertMode() {
         if (keyString.equals("Escape")) {
+            repeatInsert(insertedText.toString());
             mode = Mode.NORMAL;
-            if (!history.get(historyIndex).equals(content))
+            registers.setInserted(insertedText.toString());
+            if (insertChange != null) {
+                insertChange.setInsertedText(insertedText.toString());
+                lastChange = insertChange;
+                insertChange = null;
+            }
+            insertedText.setLength(0);
+            // Fed keys (like :normal) get one undo step for all of them
+            if (!feedingKeys && !history.get(historyIndex).equals(content))
                 pushToHistory();
             return;
         }
@@ -280,67 +363,26 @@ class Editor extends PComponent {
         writeKey();
     }
 
-    private boolean isOperator(char c) {
-        for (char operator : operatorsGeneric)
-            if (c == operator)
-                return true;
-
-        if (mode == Mode.VISUAL) {
-            for (char operator : operatorsVisual)
-                if (c == operator)
-                    return true;
-        } else if (mode == Mode.NORMAL) {
-            for (char operator : operatorsNormal)
-                if (c == operator)
-                    return true;
-        }
-
-        return false;
-    }
-
-    private boolean isValidSecondOperator(char c) {
-        for (char operator : validSecondOperators)
-            if (c == operator)
-                return true;
-
-        return false;
-    }
-
-    private boolean isMotionGeneric(char c) {
-        // Special case for recording macros
-        if (c == 'q')
-            return recordingMacro;
-        for (char motion : motionsGeneric) {
-            if (c == motion)
-                return true;
-        }
-
-        return false;
-    }
-
-    private boolean isOperatorGeneric(char c) {
-        for (char operator : operatorsGeneric)
-            if (c == operator)
-                return true;
-
-        return false;
-    }
-
-    private boolean isMotion(char c) {
-        if (isMotionGeneric(c))
-            return true;
-
-        if (mode == Mode.VISUAL) {
-            for (char motion : motionsVisual)
-                if (c == motion)
-                    return true;
-        } else if (mode == Mode.NORMAL) {
-            for (char motion : motionsNormal)
-                if (c == motion)
-                    return true;
-        }
-
-        return false;
+    // Fills the keymap with the built in keys
+    private void defineKeys() {
+        for (char c : motionsGeneric)
+            keymap.defineGeneric(c, Keymap.MOTION);
+        for (char c : argumentKeysGeneric)
+            keymap.defineGeneric(c, Keymap.ARGUMENT);
+        for (char c : commands)
+            keymap.defineGeneric(c, Keymap.COMMAND);
+
+        for (char c : motionsNormal)
+            keymap.define(Mode.NORMAL, c, Keymap.MOTION);
+        for (char c : operatorsNormal)
+            keymap.define(Mode.NORMAL, c, Keymap.OPERATOR);
+        for (char c : argumentKeysNormal)
+            keymap.define(Mode.NORMAL, c, Keymap.ARGUMENT);
+
+        for (char c : motionsVisual)
+            keymap.define(Mode.VISUAL, c, Keymap.MOTION);
+        for (char c : argumentKeysVisual)
+            keymap.define(Mode.VISUAL, c, Keymap.ARGUMENT);
     }
 
     private boolean isRangeOperator(char c) {
@@ -351,14 +393,6 @@ class Editor extends PComponent {
         return false;
     }
 
-    private boolean isCommand(char c) {
-        for (int i = 0; i < commands.length; i++)
-            if (c == commands[i])
-                return true;
-
-        return false;
-    }
-
     private boolean isNumber(char c) {
         return c >= '0' && c <= '9';
     }
@@ -405,6 +439,11 @@ class Editor extends PComponent {
                 content.add(scanner.nextLine());
 
             cursor = new Cursor(this);
+            matchIndex = null;
+            wordIndex.rebuild(content);
+            trigramIndex = TrigramIndex.open(file, content);
+            bracketIndexes.clear();
+            paragraphs = new ParagraphIndex();
 
             scanner.close();
 
@@ -478,6 +517,51 @@ class Editor extends PComponent {
         addToRecentFiles();
     }
 
+    /**
+     * Returns the index for the bracket pair {@code bracket} belongs to, making
+     * it if needed.
+     */
+    public BracketIndex getBracketIndex(char bracket) {
+        catchUpWithChanges();
+        char open = openingBracket(bracket);
+        BracketIndex index = bracketIndexes.get(open);
+        if (index == null) {
+            index = new BracketIndex(open, closingBracket(open));
+            bracketIndexes.put(open, index);
+        }
+        return index;
+    }
+
+    private ParagraphIndex getParagraphIndex() {
+        catchUpWithChanges();
+        return paragraphs;
+    }
+
+    private char closingBracket(char open) {
+        switch (open) {
+            case '(':
+                return ')';
+            case '[':
+                return ']';
+            case '{':
+                return '}';
+            default:
+                return '>';
+        }
+    }
+
+    public boolean isInDictionary(CharSequence word) {
+        // Most of the time there aren't any learned words, so skip making a string
+        if (userDictionary.isEmpty())
+            return dictionary.contains(word);
+
+        String string = word.toString();
+        if (userDictionary.isLearned(string))
+            return true;
+
+        return dictionary.contains(word) && !userDictionary.isUnlearned(string);
+    }
+
     private boolean parseCommandColon(String motion) {
         // :50 to go to line 50
         if (Helper.isInt(motion)) {
@@ -531,41 +615,600 @@ class Editor extends PComponent {
             case "E":
                 openExplorer();
                 return true;
-            // TODO #12 add ability to save newly learned/unlearned words
             case "learn":
                 String word = cursor.getWord().toLowerCase();
-                if (!dictionary.contains(word)) {
-                    dictionary.add(word);
+                if (!isInDictionary(word)) {
+                    userDictionary.learn(word);
+                    tokenizer.dictionaryChanged();
                     errorMessage = "Added \"" + word + "\" to dictionary";
                 }
                 return true;
             case "unlearn":
                 word = cursor.getWord().toLowerCase();
-                if (dictionary.contains(word)) {
-                    dictionary.remove(word);
+                if (isInDictionary(word)) {
+                    userDictionary.unlearn(word);
+                    tokenizer.dictionaryChanged();
                     errorMessage = "Removed \"" + word + "\" from dictionary";
                 }
                 return true;
+            case "noh":
+            case "nohlsearch":
+                highlightSearch = null;
+                return true;
             case "spellcheck":
                 spellCheckEnabled = !spellCheckEnabled;
+                tokenizer.setSpellCheck(spellCheckEnabled);
                 errorMessage = "Spell check now " + (spellCheckEnabled ? "enabled" : "disabled");
                 return true;
         }
 
+        if (isMapCommand(motion))
+            return parseCommandMap(motion);
+
+        // Commands that can start with a range, like :%s or :5,10s
+        int[] range = parseRange(motion, cursor.y, cursor.y);
+        if (range == null) {
+            errorMessage = "E16: Invalid range";
+            return true;
+        }
+        String command = motion.substring(range[2]);
+        BitSet lines = new BitSet(range[1] + 1);
+        lines.set(range[0], range[1] + 1);
+        if (command.length() > 1 && command.charAt(0) == 's' && isCommandDelimiter(command.charAt(1)))
+            return parseCommandSubstitute(command.substring(2), command.charAt(1), lines);
+        if (isNormalCommand(command))
+            return parseCommandNormal(command, lines);
+
+        // :g/pattern/cmd, and :v or :g! for the lines that don't match
+        int patternStart = command.startsWith("g!") ? 2 : 1;
+        if ((command.startsWith("g") || command.startsWith("v")) && command.length() > patternStart
+                && isCommandDelimiter(command.charAt(patternStart))) {
+            // :g works on the whole file unless it's given a range
+            if (range[2] == 0) {
+                range[0] = 0;
+                range[1] = content.size() - 1;
+            }
+            return parseCommandGlobal(command.substring(patternStart + 1), command.charAt(patternStart),
+                    patternStart == 2 || command.startsWith("v"), range[0], range[1]);
+        }
+
         return false;
     }
 
-    private boolean parseCommandStar() {
-        motion = "/" + cursor.getWord();
-        parseCommandSlash(motion);
+    /**
+     * Parses the range at the start of a : command. Lines can be numbers, . for
+     * the current line or $ for the last one, optionally followed by +n or -n.
+     * % is every line. Returns {first line, last line, length of the range}
+     * with lines starting at 0, or null if the range is invalid.
+     */
+    private int[] parseRange(String command, int defaultFirst, int defaultLast) {
+        if (command.startsWith("%"))
+            return new int[] { 0, content.size() - 1, 1 };
+
+        int[] position = { 0 };
+        int first = parseAddress(command, position);
+        if (first == Integer.MIN_VALUE)
+            return new int[] { defaultFirst, defaultLast, 0 };
+
+        int last = first;
+        if (position[0] < command.length() && command.charAt(position[0]) == ',') {
+            position[0]++;
+            last = parseAddress(command, position);
+            if (last == Integer.MIN_VALUE)
+                return null;
+        }
+
+        // Vim asks whether to swap them, we just do it
+        if (first > last) {
+            int temp = first;
+            first = last;
+            last = temp;
+        }
+        if (first < 0 || last >= content.size())
+            return null;
+
+        return new int[] { first, last, position[0] };
+    }
+
+    // Reads one line address starting at position[0] and moves position[0] past
+    // it. Returns Integer.MIN_VALUE if there isn't one there.
+    private int parseAddress(String command, int[] position) {
+        int i = position[0];
+        int line;
+        if (i < command.length() && command.charAt(i) == '.') {
+            line = cursor.y;
+            i++;
+        } else if (i < command.length() && command.charAt(i) == '$') {
+            line = content.size() - 1;
+            i++;
+        } else if (i < command.length() && isNumber(command.charAt(i))) {
+            int start = i;
+            while (i < command.length() && isNumber(command.charAt(i)))
+                i++;
+            line = parseInt(command.substring(start, i)) - 1;
+        } else if (i < command.length() && (command.charAt(i) == '+' || command.charAt(i) == '-')) {
+            line = cursor.y; // .+1 can be written as +1
+        } else {
+            return Integer.MIN_VALUE;
+        }
+
+        while (i < command.length() && (command.charAt(i) == '+' || command.charAt(i) == '-')) {
+            int sign = command.charAt(i) == '+' ? 1 : -1;
+            int start = ++i;
+            while (i < command.length() && isNumber(command.charAt(i)))
+                i++;
+            line += sign * (i == start ? 1 : parseInt(command.substring(start, i)));
+        }
+
+        position[0] = i;
+        return line;
+    }
+
+    private boolean isMapCommand(String command) {
+        String name = command.split(" ", 2)[0];
+        for (String mapCommand : MAP_COMMANDS)
+            if (mapCommand.equals(name))
+                return true;
+
+        return false;
+    }
+
+    // :map keys to, :noremap keys to and :unmap keys. n and v in front of them
+    // only map in normal or visual mode. :map on its own lists every mapping.
+    private boolean parseCommandMap(String command) {
+        String[] parts = command.trim().split("\\s+", 3);
+        String name = parts[0];
+        boolean normalOnly = name.startsWith("n") && !name.equals("noremap");
+        boolean visualOnly = name.startsWith("v") || name.startsWith("x");
+        List<Mode> modes = new ArrayList<>();
+        if (!visualOnly)
+            modes.add(Mode.NORMAL);
+        if (!normalOnly)
+            modes.add(Mode.VISUAL);
+
+        // Mappings match keys by their chars
+        String keys = "";
+        if (parts.length > 1)
+            for (KeyStroke stroke : KeyStroke.parse(parts[1]))
+                keys += stroke.getKey();
+
+        if (name.endsWith("unmap")) {
+            if (keys.length() == 0) {
+                errorMessage = "E474: Invalid argument";
+                return true;
+            }
+
+            boolean removed = false;
+            for (Mode mode : modes)
+                removed |= keymap.unmap(mode, keys);
+            if (!removed)
+                errorMessage = "E31: No such mapping";
+            return true;
+        }
+
+        if (parts.length < 3) {
+            listMappings(modes, keys);
+            return true;
+        }
+
+        List<KeyStroke> to = KeyStroke.parse(parts[2]);
+        for (Mode mode : modes)
+            keymap.map(mode, keys, to, name.contains("noremap"));
+        return true;
+    }
+
+    // :map with no keys to map to, shows the mappings that start with keys
+    private void listMappings(List<Mode> modes, String keys) {
+        List<String> found = new ArrayList<>();
+        for (Mode mode : modes) {
+            for (Keymap.Mapping mapping : keymap.getMappings(mode)) {
+                if (!mapping.getKeys().startsWith(keys))
+                    continue;
+
+                String from = "";
+                for (char c : mapping.getKeys().toCharArray())
+                    from += KeyStroke.of(c);
+                found.add((mode == Mode.NORMAL ? "n " : "v ") + from + (mapping.isNoremap() ? " * " : " ")
+                        + KeyStroke.toString(mapping.getTo()));
+            }
+        }
+
+        errorMessage = found.isEmpty() ? "No mapping found" : String.join("  |  ", found);
+    }
+
+    private boolean isCommandDelimiter(char c) {
+        return !Character.isLetterOrDigit(c) && c != ' ' && c != '\\' && c != '"' && c != '|';
+    }
+
+    // :s/pattern/replacement/flags over the given lines
+    private boolean parseCommandSubstitute(String command, char delimiter, BitSet lines) {
+        String[] parts = Substitution.split(command, delimiter, 3);
+        String flags = parts[2];
+
+        boolean global = false, ignoreCase = false, countOnly = false;
+        for (int i = 0; i < flags.length(); i++) {
+            switch (flags.charAt(i)) {
+                case 'g':
+                    global = !global; // gg cancels itself out, like vim
+                    break;
+                case 'i':
+                    ignoreCase = true;
+                    break;
+                case 'I':
+                    ignoreCase = false;
+                    break;
+                case 'n':
+                    countOnly = true;
+                    break;
+                default:
+                    errorMessage = "E488: Trailing characters: " + flags.substring(i);
+                    return true;
+            }
+        }
+
+        SearchEngine engine = createCommandSearch(parts[0], ignoreCase);
+        if (engine == null)
+            return true;
+
+        Substitution substitution = new Substitution(engine, parts[1], global, countOnly);
+        try {
+            substitution.apply(content, lines);
+        } catch (SearchEngine.TimeoutException e) {
+            errorMessage = e.getMessage();
+            return true;
+        }
+
+        search = engine;
+        highlightSearch = engine;
+        searchForward = true;
+
+        int count = substitution.getSubstitutions();
+        int linesChanged = substitution.getLinesChanged();
+        if (count == 0) {
+            errorMessage = "E486: Pattern not found: " + engine.getPattern();
+            return true;
+        }
+
+        errorMessage = count + (countOnly ? (count == 1 ? " match" : " matches")
+                : (count == 1 ? " substitution" : " substitutions")) + " on " + linesChanged
+                + (linesChanged == 1 ? " line" : " lines");
+        if (!countOnly) {
+            cursor.y = substitution.getLastLine();
+            cursor.findFirstNonWhitespace();
+            fileSaved = false;
+        }
         return true;
     }
 
-    private boolean parseCommandSlash(String motion) {
-        // TODO - implement
+    // The search for a : command's pattern, or null (with the error shown) if
+    // there isn't a usable one. An empty pattern uses the last search.
+    private SearchEngine createCommandSearch(String pattern, boolean ignoreCase) {
+        SearchEngine engine;
+        if (pattern.length() > 0) {
+            engine = new SearchEngine(pattern, false, ignoreCase);
+        } else if (search != null) {
+            engine = new SearchEngine(search.getPattern(), search.isWholeWord(), ignoreCase);
+        } else {
+            errorMessage = "E35: No previous regular expression";
+            return null;
+        }
+
+        if (engine.getError() != null) {
+            errorMessage = engine.getError();
+            return null;
+        }
+
+        usePrefilter(engine);
+        return engine;
+    }
+
+    // :g/pattern/cmd over lines first to last
+    private boolean parseCommandGlobal(String command, char delimiter, boolean invert, int first, int last) {
+        String[] parts = Substitution.split(command, delimiter, 2);
+        SearchEngine engine = createCommandSearch(parts[0], false);
+        if (engine == null)
+            return true;
+
+        // Find every line first, then run the command on all of them
+        BitSet marked;
+        try {
+            marked = GlobalCommand.mark(engine, content, first, last, invert);
+        } catch (SearchEngine.TimeoutException e) {
+            errorMessage = e.getMessage();
+            return true;
+        }
+
+        search = engine;
+        highlightSearch = engine;
+        searchForward = true;
+
+        if (marked.isEmpty()) {
+            errorMessage = invert ? "Pattern found in every line: " + engine.getPattern()
+                    : "E486: Pattern not found: " + engine.getPattern();
+            return true;
+        }
+
+        String action = parts[1].trim();
+        if (action.length() == 0 || action.equals("p") || action.equals("print")) {
+            cursor.y = marked.previousSetBit(last);
+            cursor.findFirstNonWhitespace();
+            int count = marked.cardinality();
+            errorMessage = count + (count == 1 ? " line" : " lines");
+            return true;
+        }
+
+        if (action.equals("d") || action.equals("delete")) {
+            int lastMarked = marked.previousSetBit(last);
+            int removed = GlobalCommand.removeMarked(content, marked);
+            if (content.size() == 0)
+                content.add("");
+
+            // The cursor ends up on the line after the last one deleted
+            cursor.y = min(lastMarked - removed + 1, content.size() - 1);
+            cursor.findFirstNonWhitespace();
+            errorMessage = removed + (removed == 1 ? " fewer line" : " fewer lines");
+            fileSaved = false;
+            return true;
+        }
+
+        if (action.length() > 1 && action.charAt(0) == 's' && isCommandDelimiter(action.charAt(1)))
+            return parseCommandSubstitute(action.substring(2), action.charAt(1), marked);
+        if (isNormalCommand(action))
+            return parseCommandNormal(action, marked);
+
+        errorMessage = "E492: Not an editor command: " + action;
         return true;
     }
 
+    private boolean isNormalCommand(String command) {
+        return command.startsWith("norm") && "normal".startsWith(command.split(" ", 2)[0]);
+    }
+
+    // :normal keys, which types the keys at the start of every given line
+    private boolean parseCommandNormal(String command, BitSet lines) {
+        int space = command.indexOf(' ');
+        if (space == -1) {
+            errorMessage = "E471: Argument required";
+            return true;
+        }
+
+        List<KeyStroke> keys = KeyStroke.parse(command.substring(space + 1));
+        String typedMotion = motion;
+
+        // Bottom up, so lines the keys add or remove don't move the ones still to do
+        for (int y = lines.previousSetBit(content.size() - 1); y >= 0; y = lines.previousSetBit(y - 1)) {
+            if (y >= content.size())
+                continue;
+
+            cursor.y = y;
+            cursor.x = 0;
+            mode = Mode.NORMAL;
+            motion = "";
+            keyParser.reset();
+            errorMessage = "";
+            feedKeys(keys);
+
+            // Like vim, an unfinished insert (or anything else) gets escaped
+            if (mode != Mode.NORMAL || motion.length() > 0 || keyParser.isPending())
+                feedKeys(ESCAPE);
+            if (mode == Mode.VISUAL)
+                feedKeys(ESCAPE);
+        }
+
+        motion = typedMotion;
+        keyParser.reset();
+        cursor.constrain();
+        return true;
+    }
+
+    // * and #, which search for the word under the cursor
+    private boolean parseCommandStar(boolean forward) {
+        String word = cursor.getWord();
+        if (word.length() == 0)
+            return true;
+
+        search = new SearchEngine(word, true);
+        highlightSearch = search;
+        searchForward = forward;
+
+        // The word index knows which lines to look at, otherwise search the file
+        catchUpWithChanges();
+        if (!wordIndex.isReady() || !jumpToWord(word, forward))
+            searchNext(false);
+        return true;
+    }
+
+    /**
+     * Jumps to the next (or previous) whole word match of {@code word} using the
+     * word index. Returns false if it couldn't tell where that is.
+     */
+    private boolean jumpToWord(String word, boolean forward) {
+        // The rest of the current line first
+        String line = content.get(cursor.y);
+        int index = forward ? search.indexOf(line, cursor.x + 1) : search.lastIndexOf(line, cursor.x - 1);
+        int y = cursor.y;
+
+        // The index can have lines where the word is only part of a bigger one
+        // (foo in foo_bar), so those get skipped
+        for (int i = 0; index == -1 && i < wordIndex.count(word); i++) {
+            y = forward ? wordIndex.nextLine(word, y) : wordIndex.previousLine(word, y);
+            line = content.get(y);
+            index = forward ? search.indexOf(line, 0) : search.lastIndexOf(line, Integer.MAX_VALUE);
+        }
+        if (index == -1)
+            return false;
+
+        boolean wrapped = forward ? y < cursor.y || (y == cursor.y && index <= cursor.x)
+                : y > cursor.y || (y == cursor.y && index >= cursor.x);
+        cursor.y = y;
+        cursor.x = index;
+
+        if (wrapped)
+            errorMessage = forward ? "search hit BOTTOM, continuing at TOP" : "search hit TOP, continuing at BOTTOM";
+        else
+            errorMessage = (forward ? "/" : "?") + search.getPattern();
+        return true;
+    }
+
+    /**
+     * Ctrl-N (or Ctrl-P if {@code forward} is false) in insert mode. Completes
+     * the word before the cursor with words from the rest of the file, and
+     * pressing it again cycles through them.
+     */
+    private void completeWord(boolean forward) {
+        catchUpWithChanges();
+        String line = content.get(cursor.y);
+
+        // Still on the last completion? Then move on to the next one
+        boolean cycling = completions != null && completionStart + completions.get(completionIndex).length() == cursor.x
+                && line.startsWith(completions.get(completionIndex), completionStart);
+        if (!cycling) {
+            int start = cursor.x;
+            int type = start > 0 ? LineTokenizer.classify(line.charAt(start - 1)) : -1;
+            if (type != LineTokenizer.WORD && type != LineTokenizer.NUMBER) {
+                completions = null;
+                return;
+            }
+            while (start > 0 && LineTokenizer.classify(line.charAt(start - 1)) == type)
+                start--;
+
+            if (!wordIndex.isReady()) {
+                errorMessage = "-- Keyword completion (^N^P) Index not ready yet";
+                completions = null;
+                return;
+            }
+
+            String prefix = line.substring(start, cursor.x);
+            completions = new ArrayList<>();
+            completions.add(prefix);
+            completions.addAll(wordIndex.complete(prefix));
+            completionIndex = 0;
+            completionStart = start;
+
+            if (completions.size() == 1) {
+                errorMessage = "-- Keyword completion (^N^P) Pattern not found";
+                completions = null;
+                return;
+            }
+        }
+
+        String current = completions.get(completionIndex);
+        completionIndex = (completionIndex + (forward ? 1 : completions.size() - 1)) % completions.size();
+        String next = completions.get(completionIndex);
+
+        content.set(cursor.y, line.substring(0, completionStart) + next
+                + line.substring(completionStart + current.length()));
+        cursor.x = completionStart + next.length();
+        fileSaved = false;
+
+        if (completionIndex == 0)
+            errorMessage = "-- Keyword completion (^N^P) Back at original";
+        else
+            errorMessage = "-- Keyword completion (^N^P) match " + completionIndex + " of "
+                    + (completions.size() - 1);
+    }
+
+    // /pattern and ?pattern
+    private boolean parseCommandSlash(String motion, boolean forward) {
+        // An empty pattern repeats the last search
+        if (motion.length() > 0)
+            search = new SearchEngine(motion);
+
+        highlightSearch = search;
+        searchForward = forward;
+        searchNext(false);
+        return true;
+    }
+
+    // Lets the search skip the blocks of lines the trigram index rules out
+    private void usePrefilter(SearchEngine engine) {
+        catchUpWithChanges();
+        if (trigramIndex != null && trigramIndex.isReady())
+            engine.setCandidateBlocks(trigramIndex.candidates(engine), TrigramIndex.BLOCK_LINES);
+    }
+
+    /**
+     * Jumps to the next match of the last search (n), or the previous one if
+     * reverse is true (N). Wraps around the ends of the file.
+     */
+    private boolean searchNext(boolean reverse) {
+        catchUpWithChanges();
+        if (search == null) {
+            errorMessage = "E35: No previous regular expression";
+            return false;
+        }
+
+        if (search.getError() != null) {
+            errorMessage = search.getError();
+            return false;
+        }
+
+        // Only scan the whole file once per search, edits keep the index up to date
+        try {
+            if (matchIndex == null || matchIndex.getEngine() != search) {
+                usePrefilter(search);
+                matchIndex = new MatchIndex(search, content);
+            }
+        } catch (SearchEngine.TimeoutException e) {
+            matchIndex = null;
+            errorMessage = e.getMessage();
+            return false;
+        }
+
+        boolean forward = searchForward != reverse;
+        long cursorPosition = SearchEngine.position(cursor.y, cursor.x);
+        int index = forward ? matchIndex.next(cursorPosition) : matchIndex.previous(cursorPosition);
+        if (index == -1) {
+            errorMessage = "E486: Pattern not found: " + search.getPattern();
+            return false;
+        }
+
+        long match = matchIndex.get(index);
+        cursor.y = SearchEngine.line(match);
+        cursor.x = SearchEngine.column(match);
+
+        boolean wrapped = forward ? match <= cursorPosition : match >= cursorPosition;
+        if (wrapped)
+            errorMessage = forward ? "search hit BOTTOM, continuing at TOP" : "search hit TOP, continuing at BOTTOM";
+        else
+            errorMessage = (forward ? "/" : "?") + search.getPattern();
+        return true;
+    }
+
+    /**
+     * Called whenever the motion changes. While a search is being typed this
+     * jumps to the first match and keeps the highlighted matches up to date.
+     */
+    private void updateIncrementalSearch() {
+        boolean typingSearch = motion.length() > 0 && (motion.charAt(0) == '/' || motion.charAt(0) == '?');
+        if (!typingSearch) {
+            if (incrementalSearch != null)
+                stopIncrementalSearch();
+            return;
+        }
+
+        if (incrementalSearch == null)
+            incrementalSearch = new IncrementalSearch(cursor.x, cursor.y, new ArrayList<>(content), trigramIndex);
+
+        long match = incrementalSearch.update(motion.substring(1), motion.charAt(0) == '/', getFirstVisibleLine(),
+                getLastVisibleLine());
+        if (match == -1) {
+            cursor.x = incrementalSearch.getOriginX();
+            cursor.y = incrementalSearch.getOriginY();
+        } else {
+            cursor.x = SearchEngine.column(match);
+            cursor.y = SearchEngine.line(match);
+        }
+    }
+
+    // Puts the cursor back where the search started
+    private void stopIncrementalSearch() {
+        incrementalSearch.cancel();
+        cursor.x = incrementalSearch.getOriginX();
+        cursor.y = incrementalSearch.getOriginY();
+        incrementalSearch = null;
+    }
+
     // :, *, /, etc.
     private boolean parseCommand() {
         String motion = this.motion;
@@ -576,67 +1219,49 @@ class Editor extends PComponent {
             case ':':
                 return parseCommandColon(motion);
             case '*':
-                return parseCommandStar();
+                return parseCommandStar(true);
+            case '#':
+                return parseCommandStar(false);
             case '/':
-                return parseCommandSlash(motion);
+                return parseCommandSlash(motion, true);
+            case '?':
+                return parseCommandSlash(motion, false);
         }
 
         return false;
     }
 
-    private void deleteLines(ArrayList<Integer> lines) {
-        // Delete every unique line
-        for (int i = lines.size() - 1; i >= 0; i--) {
-            content.remove((int) lines.get(i));
-            // If this line is above or at the cursor, move the cursor up one
-            if (lines.get(i) < cursor.y
-                    || (lines.get(i) == cursor.y && cursor.y == content.size()))
-                cursor.up();
-        }
-        // If cursor is to far to the right of the its current line, move it to the end
-        // of the line
-        if (content.size() == 0)
-            content.add("");
-        if (cursor.x > content.get(cursor.y).length())
-            cursor.x = content.get(cursor.y).length();
-    }
-
-    private void deleteCharacters(List<PVector> selectedCharacters) {
-        // Delete each character, move cursor to beginning of selection
-        for (int i = selectedCharacters.size() - 1; i >= 0; i--) {
-            PVector selectedCharacter = selectedCharacters.get(i);
-            String line = content.get((int) selectedCharacter.y);
-            line = line.substring(0, (int) selectedCharacter.x)
-                    + line.substring((int) min(selectedCharacter.x, line.length() - 1) + 1);
-
-            if (line.length() > 0)
-                content.set((int) selectedCharacter.y, line);
-            else {
-                content.remove((int) selectedCharacter.y);
+    // Visual p and P, the selection is replaced by what's pasted (and goes
+    // into the unnamed register, like in vim)
+    private void pasteOver(TextRange range, Register pasted) {
+        registers.delete((char) 0, Register.of(range, content));
+        boolean wasLast = range.getEndY() == content.size() - 1;
+        range.delete(content);
+        fileSaved = false;
 
-                // If this line is above or at the cursor, move the cursor up one
-                if (selectedCharacter.y < cursor.y
-                        || (selectedCharacter.y == cursor.y && cursor.y == content.size())) {
-                    cursor.up();
-                }
-            }
+        cursor.y = min(range.getStartY(), content.size() - 1);
+        cursor.x = range.getStartX();
+        if (!range.isLinewise()) {
+            cursor.pasteBefore(pasted);
+            return;
         }
 
-        // Get left most endpoint
-        PVector start = visualEndpoints.get(0);
-        PVector end = visualEndpoints.get(1);
-        if (start.y > end.y || (start.y == end.y && start.x > end.x))
-            start = end;
-
-        cursor.x = (int) start.x;
-        cursor.y = (int) start.y;
-
-        // Constrain the cursor
-        cursor.constrain();
+        // Whole lines are replaced by whole lines
+        if (!pasted.isLinewise())
+            pasted = new Register(pasted.getLines(), true);
+        if (!wasLast) {
+            cursor.pasteBefore(pasted);
+        } else if (range.getStartY() > 0) {
+            cursor.pasteAfter(pasted);
+        } else {
+            // Everything was selected, drop the empty line delete() left behind
+            cursor.pasteBefore(pasted);
+            content.remove(content.size() - 1);
+        }
     }
 
     private boolean runMotion(char motion) {
-        if (isMotionGeneric(motion)) {
+        if (keymap.isGeneric(motion)) {
             switch (motion) {
                 case 'I':
                     mode = Mode.INSERT;
@@ -696,19 +1321,54 @@ class Editor extends PComponent {
                     cursor.x = cursor.getEndOfLine();
                     return true;
                 case '.':
-                    this.motion = previousMotion;
-                    parseMotion();
-                    this.motion = "";
+                    // Only normal mode has something to repeat, see repeatChange()
                     return true;
                 case 'u':
                     undo();
                     return true;
+                case 'n':
+                    motionFailed = !searchNext(false);
+                    return true;
+                case 'N':
+                    motionFailed = !searchNext(true);
+                    return true;
+                case '}':
+                    int boundary = getParagraphIndex().nextBoundary(content, cursor.y);
+                    if (boundary == -1) {
+                        cursor.y = content.size() - 1;
+                        cursor.x = cursor.getEndOfLine();
+                    } else {
+                        cursor.y = boundary;
+                        cursor.x = 0;
+                    }
+                    return true;
+                case '{':
+                    boundary = getParagraphIndex().previousBoundary(content, cursor.y);
+                    cursor.y = max(boundary, 0);
+                    cursor.x = 0;
+                    return true;
+                case ')':
+                    long sentence = getParagraphIndex().nextSentence(content, cursor.x, cursor.y);
+                    if (sentence == -1) {
+                        cursor.y = content.size() - 1;
+                        cursor.x = cursor.getEndOfLine();
+                    } else {
+                        cursor.y = SearchEngine.line(sentence);
+                        cursor.x = SearchEngine.column(sentence);
+                    }
+                    return true;
+                case '(':
+                    sentence = getParagraphIndex().previousSentence(content, cursor.x, cursor.y);
+                    cursor.y = sentence == -1 ? 0 : SearchEngine.line(sentence);
+                    cursor.x = sentence == -1 ? 0 : SearchEngine.column(sentence);
+                    return true;
                 case 'q':
                     // This case will only happen if they press q and are recording a macro
                     recordingMacro = false;
                     macro.remove(macro.size() - 1); // remove the q
 
-                    macros.put(macroKey, new ArrayList<AWTEvent>(macro));
+                    // Kept as text so it can be pasted, changed and yanked back
+                    registers.record(macroKey, new Register(Arrays.asList(KeyStroke.toString(macro)), false));
 
                     macro.clear();
                     return true;
@@ -726,25 +1386,15 @@ class Editor extends PComponent {
                     mode = Mode.INSERT;
                     cursor.right();
                     return true;
-                case 'C':
-                    cursor.deleteToLineEnd();
-                    mode = Mode.INSERT;
-                    break;
-                case 'D':
-                    cursor.deleteToLineEnd();
-                    break;
-                case 's':
-                    cursor.deleteCurrentCharacter();
-                    mode = Mode.INSERT;
-                    break;
                 case 'p':
-                    cursor.pasteAfter();
+                    Register pasted = registers.get(register);
+                    if (pasted != null)
+                        cursor.pasteAfter(pasted);
                     break;
                 case 'P':
-                    cursor.pasteBefore();
-                    break;
-                case 'x':
-                    cursor.deleteCurrentCharacter();
+                    pasted = registers.get(register);
+                    if (pasted != null)
+                        cursor.pasteBefore(pasted);
                     break;
                 case 'o':
                     cursor.newLineBelow();
@@ -765,62 +1415,35 @@ class Editor extends PComponent {
         }
 
         // Visual mode
-        ArrayList<PVector> selectedCharacters = getSelectedCharacters();
-        ArrayList<Integer> uniqueLines = getSelectedCharactersLines();
+        int[] selectedLines = getSelectedLines();
         boolean changed = false;
 
         switch (motion) {
             case 'C':
-                deleteLines(uniqueLines);
-                mode = Mode.INSERT;
+                applyOperator('c', TextRange.lines(selectedLines[0], selectedLines[1]));
                 visualEndpoints.clear();
                 changed = true;
                 break;
             case 'c':
-                deleteCharacters(selectedCharacters);
-                mode = Mode.INSERT;
+            case 's':
+                applyOperator('c', getVisualRange());
                 visualEndpoints.clear();
                 changed = true;
                 break;
             case 'D':
-                deleteLines(uniqueLines);
+                applyOperator('d', TextRange.lines(selectedLines[0], selectedLines[1]));
                 changed = true;
                 break;
             case 'd':
-                deleteCharacters(selectedCharacters);
-                changed = true;
-                break;
-            case 's':
-                deleteCharacters(selectedCharacters);
-                mode = Mode.INSERT;
-                changed = true;
-                break;
             case 'x':
-                deleteCharacters(selectedCharacters);
+                applyOperator('d', getVisualRange());
                 changed = true;
                 break;
             case 'p':
-                // Delete every unique line
-                for (int i = uniqueLines.size() - 1; i >= 0; i--) {
-                    content.remove((int) uniqueLines.get(i));
-                    // If this line is above or at the cursor, move the cursor up one
-                    if (uniqueLines.get(i) <= cursor.y)
-                        cursor.up();
-                }
-
-                cursor.pasteAfter();
-                changed = true;
-                break;
             case 'P':
-                // Delete every unique line
-                for (int i = uniqueLines.size() - 1; i >= 0; i--) {
-                    content.remove((int) uniqueLines.get(i));
-                    // If this line is above or at the cursor, move the cursor up one
-                    if (uniqueLines.get(i) <= cursor.y)
-                        cursor.up();
-                }
-
-                cursor.pasteAfter();
+                Register pasted = registers.get(register);
+                if (pasted != null)
+                    pasteOver(getVisualRange(), pasted);
                 changed = true;
                 break;
             case 'o':
@@ -854,47 +1477,80 @@ class Editor extends PComponent {
                 visualEndpoints.clear();
                 return true;
             case 'y':
-                ArrayList<Integer> lines = getSelectedCharactersLines();
-                String[] linesArray = new String[lines.size()];
-                PVector[] endpoints = getSortedVisualEndpoints();
-                start = endpoints[0];
-                PVector end = endpoints[1];
-
-                for (int i = 0; i < lines.size(); i++) {
-                    String line = content.get(lines.get(i));
-                    // Cut line off at end points
-                    if (lines.get(i) == start.y) {
-                        line = line.substring((int) start.x);
-                    }
-                    if (lines.get(i) == end.y) {
-                        int endX = (int) end.x;
-                        if (start.y == end.y)
-                            endX -= (int) start.x;
-                        line = line.substring(0, endX + 1);
-                    }
-
-                    linesArray[i] = line + "\n";
-                }
-                String text = String.join("", linesArray);
-                copyToClipboard(text);
+                applyOperator('y', getVisualRange());
                 mode = Mode.NORMAL;
+                visualEndpoints.clear();
                 return true;
         }
-        if (changed) {
-            if (mode == Mode.VISUAL) {
-                mode = Mode.NORMAL;
-                visualEndpoints.clear();
-            }
-            fileSaved = false;
+        if (changed) {
+            if (mode == Mode.VISUAL) {
+                mode = Mode.NORMAL;
+                visualEndpoints.clear();
+            }
+            fileSaved = false;
+            return true;
+        }
+        return false;
+    }
+
+    // w, 3b, etc.
+    private boolean runMotion(int numTimes, char motion) {
+        // In vim if you are in visual mode it just ignores numTimes
+        if (mode == Mode.VISUAL) {
+            return runMotion(motion);
+        }
+
+        // x, s, D and C are short for dl, cl, d$ and c$, so they yank into a
+        // register like any other delete
+        int shorthand = "xsDC".indexOf(motion);
+        if (shorthand != -1 && mode == Mode.NORMAL)
+            return runMotion(1, "dcdc".charAt(shorthand), numTimes, "ll$$".charAt(shorthand));
+
+        // Cursor motions take the count themselves, so 100000j is one jump
+        // instead of 100000 trips through runMotion
+        Boolean moved = null;
+        switch (motion) {
+            case 'h':
+                moved = cursor.left(numTimes);
+                break;
+            case 'j':
+                moved = cursor.down(numTimes);
+                break;
+            case 'k':
+                moved = cursor.up(numTimes);
+                break;
+            case 'l':
+                moved = cursor.right(numTimes);
+                break;
+            case 'w':
+                moved = cursor.nextWord(numTimes);
+                break;
+            case 'b':
+                moved = cursor.previousWord(numTimes);
+                break;
+            case 'W':
+                moved = cursor.nextWordWithPunctuation(numTimes);
+                break;
+            case 'B':
+                moved = cursor.previousWordWithPunctuation(numTimes);
+                break;
+            case 'e':
+                moved = cursor.endOfWord(numTimes);
+                break;
+            case 'E':
+                moved = cursor.endOfWordWithPunctuation(numTimes);
+                break;
+        }
+        if (moved != null) {
+            motionFailed = !moved;
             return true;
         }
-        return false;
-    }
 
-    // w, 3b, etc.
-    private boolean runMotion(int numTimes, char motion) {
-        // In vim if you are in visual mode it just ignores numTimes
-        if (mode == Mode.VISUAL) {
+        // 3ihi<Esc> and 5o only go into insert mode once, what's typed is
+        // repeated when it ends
+        if ("iaIAoO".indexOf(motion) != -1 && mode == Mode.NORMAL) {
+            insertCount = numTimes;
+            insertLines = motion == 'o' || motion == 'O';
             return runMotion(motion);
         }
 
@@ -914,33 +1570,17 @@ class Editor extends PComponent {
     // dw, d3w, 3cw, etc.
     private boolean runMotion(int numTimesTotal, char operator, int numTimes, char motion) {
         // TODO implement the rest of these
-        if (isOperatorGeneric(operator)) {
+        if (keymap.isGeneric(operator)) {
             switch (operator) {
                 case 'f':
-                    char searchChar = motion;
-                    if (numTimes != 1)
-                        searchChar = (char) ((char) numTimes + '0'); // apparently adding two chars returns an int, nice
-
-                    if (cursor.isEndOfLine())
-                        return true; // Return true to clear the motion
-                    String contentToSearch = content.get(cursor.y).substring(cursor.x + 1);
-                    int index = contentToSearch.indexOf(searchChar);
-                    if (index == -1)
-                        return true;
-
-                    cursor.x += index + 1;
-                    return true;
                 case 'F':
-                    searchChar = motion;
-                    if (numTimes != 1)
-                        searchChar = (char) ((char) numTimes + '0');
-
-                    if (cursor.x == 0)
-                        return true;
-                    contentToSearch = content.get(cursor.y).substring(0, cursor.x);
-                    index = contentToSearch.lastIndexOf(searchChar);
-                    if (index == -1)
-                        return true;
+                case 't':
+                case 'T':
+                    int index = findInLine(operator, numTimesTotal * numTimes, motion);
+                    if (index == -1) {
+                        motionFailed = true;
+                        return true; // Return true to clear the motion
+                    }
 
                     cursor.x = index;
                     return true;
@@ -952,17 +1592,11 @@ class Editor extends PComponent {
                     char key = motion;
                     if (motion == '@')
                         key = previousMacro;
-                    List<AWTEvent> macro = macros.get(key);
+                    Register macro = registers.get(key);
                     if (macro == null)
                         return true;
 
-                    this.motion = "";
-
-                    for (int i = 0; i < numTimesTotal; i++) {
-                        for (AWTEvent event : macro) {
-                            simulateEvent(event);
-                        }
-                    }
+                    runMacro(KeyStroke.parse(macro.getText()), numTimesTotal);
 
                     if (motion != '@')
                         previousMacro = motion;
@@ -995,8 +1629,8 @@ class Editor extends PComponent {
                             enterVisualMode();
                             cursor.endOfCurrentWord();
                             return true;
-                        // TODO implement "vip"
                         case 'p':
+                            selectParagraph(numTimesTotal, false);
                             return true;
                     }
                     return false;
@@ -1027,20 +1661,16 @@ class Editor extends PComponent {
                                 cursor.right();
 
                             return true;
-                        // TODO implement "vap"
                         case 'p':
+                            selectParagraph(numTimesTotal, true);
                             return true;
                     }
                     return false;
                 case 'r':
                     ArrayList<PVector> selectedCharacters = getSelectedCharacters();
-                    char searchChar = motion;
-                    if (numTimes != 1)
-                        searchChar = (char) ((char) numTimes + '0');
-
                     for (PVector c : selectedCharacters) {
                         String line = content.get((int) c.y);
-                        line = line.substring(0, (int) c.x) + searchChar + line.substring((int) c.x + 1);
+                        line = line.substring(0, (int) c.x) + motion + line.substring((int) c.x + 1);
                         content.set((int) c.y, line);
                     }
                     return true;
@@ -1053,43 +1683,43 @@ class Editor extends PComponent {
             case 'c':
             case 'd':
             case 'y':
-                if (isValidSecondOperator(motion) || isOperator(motion))
-                    return false;
-                this.motion = "";
-                for (int i = 0; i < numTimesTotal; i++) {
-                    simulateKeyPress('v');
-
-                    // Run the movement
-                    runMotion(numTimes, motion);
-
-                    // nice hack to get the cursor to the right spot
-                    if (motion == 'w')
-                        cursor.left();
-                    if (motion == 'b')
-                        cursor.right();
-                    updateVisualEndpoints();
-
-                    // Run the operator (d, c, y)
-                    runMotion(operator);
-                }
+                TextRange range = motionRange(operator, numTimesTotal * numTimes, motion);
+                if (range != null)
+                    applyOperator(operator, range);
+                else
+                    motionFailed = true;
                 return true;
             case 'r':
-                char searchChar = motion;
-                if (numTimes != 1)
-                    searchChar = (char) ((char) numTimes + '0');
-
-                if (!cursor.onCharacter())
+                // 3rx replaces three characters, or nothing if there aren't that many left
+                int count = numTimesTotal * numTimes;
+                String line = content.get(cursor.y);
+                if (!cursor.onCharacter() || cursor.x + count > line.length()) {
+                    motionFailed = true;
                     return true;
+                }
 
-                String line = content.get(cursor.y);
-                line = line.substring(0, cursor.x) + searchChar + line.substring(cursor.x + 1);
-                content.set(cursor.y, line);
+                char[] replaced = new char[count];
+                Arrays.fill(replaced, motion);
+                content.set(cursor.y, line.substring(0, cursor.x) + new String(replaced) + line.substring(cursor.x + count));
+                cursor.x += count - 1;
                 return true;
             default:
                 return false;
         }
     }
 
+    // vip and vap, which select whole lines
+    private void selectParagraph(int count, boolean around) {
+        int[] lines = getParagraphIndex().paragraph(content, cursor.y, count, around);
+        visualEndpoints.clear();
+        cursor.y = lines[0];
+        cursor.x = 0;
+        enterVisualMode();
+        visualLines = true;
+        cursor.y = lines[1];
+        cursor.x = cursor.getEndOfLine();
+    }
+
     private void selectInnerRange() {
         visualEndpoints.clear();
         // Select the range
@@ -1179,165 +1809,309 @@ class Editor extends PComponent {
         if (firstOperator != secondOperator)
             return false;
 
-        this.motion = "";
-        // TODO #13 yy will always move cursor to the end of the line
-        for (int i = 0; i < numTimesTotal; i++) {
-            simulateKeyPress('V');
-            key = firstOperator;
-            handleMotions();
-        }
+        int lastLine = min(cursor.y + numTimesTotal * numTimes - 1, content.size() - 1);
+        applyOperator(firstOperator, TextRange.lines(cursor.y, lastLine));
         return false;
     }
 
-    // ciw, diw, daw, etc.
+    // ciw, diw, daw, dfx, etc.
     private boolean runMotion(int numTimesTotal, char mainOperator, int numTimes, char secondOperator, char motion) {
-        // Run viw etc. command
-        simulateKeyPress('v');
-        this.motion = secondOperator + "" + motion;
-        handleMotions();
-        updateVisualEndpoints();
-
-        // Run the main operator (d, c, y)
-        this.motion = "";
-        key = mainOperator;
-        handleMotions();
+        TextRange range = argumentRange(numTimesTotal * numTimes, secondOperator, motion);
+        if (range != null)
+            applyOperator(mainOperator, range);
+        else
+            motionFailed = true;
 
         return true;
     }
 
-    private void parseMotion() {
-        if (motion.length() == 0)
+    // What d, c and y do with the text a motion or text object went over
+    private void applyOperator(char operator, TextRange range) {
+        if (range.isEmpty() && operator != 'c')
             return;
 
-        // Structure:
-        // (number?)(motion). Ex: 3w, $
-        // (number?)(operator)(number?)(motion). Ex: 3dw, 2d3w, 2d$, d$, d5$
-        // (number?)(operator)(number?)(operator). Ex: 3dd, yy
-        // (number?)(operator)(number?)(operator)(motion). Ex: ciw
-        String motion = this.motion;
-
-        // First check to see if we have a number
-        int number = 0;
-        while (motion.length() > 0 && Character.isDigit(motion.charAt(0))) {
-            number = number * 10 + parseInt(motion.substring(0, 1));
-            motion = motion.substring(1);
-        }
-        // Handle case where motion is just 0
-        if (number == 0 && motion.length() == 0)
-            motion = this.motion;
-        if (number == 0)
-            number = 1;
-
-        // Structure:
-        // (motion). Ex: 3w, $
-        // (operator)(number?)(motion). Ex: 3dw, 2d3w, 2d$, d$, d5$
-        // (operator)(number?)(operator). Ex: 3dd, yy
-        // (operator)(number?)(operator)(motion). Ex: ciw
-        if (motion.length() == 0)
-            return;
+        if (!range.isEmpty()) {
+            Register text = Register.of(range, content);
+            if (operator == 'y')
+                registers.yank(register, text);
+            else
+                registers.delete(register, text);
+        }
 
-        // Check if we have a motion (1st structure)
-        char c = motion.charAt(0);
-        if (isMotion(c)) {
-            if (runMotion(number, c))
-                this.motion = "";
+        if (operator == 'y') {
+            cursor.y = range.getStartY();
+            if (!range.isLinewise())
+                cursor.x = range.getStartX();
+            cursor.constrain();
             return;
         }
 
-        // If it's not an operator, then we don't have a valid motion
-        if (!isOperator(c))
-            return;
+        if (operator == 'c' && range.isLinewise()) {
+            // cc and cj leave an empty line to type on
+            content.subList(range.getStartY() + 1, range.getEndY() + 1).clear();
+            content.set(range.getStartY(), "");
+        } else {
+            range.delete(content);
+        }
+        fileSaved = false;
 
-        char operator = c;
-        motion = motion.substring(1);
+        cursor.y = min(range.getStartY(), content.size() - 1);
+        if (operator == 'c')
+            mode = Mode.INSERT;
+        if (range.isLinewise() && operator != 'c')
+            cursor.findFirstNonWhitespace();
+        else
+            cursor.x = range.getStartX();
+        cursor.constrain();
+    }
 
-        // Structure:
-        // (number?)(motion). Ex: 3dw, 2d3w, 2d$, d$, d5$
-        // (number?)(operator). Ex: 3dd, yy
-        // (number?)(operator)(motion). Ex: ciw
+    // The range d{motion} etc. works on, from the cursor to wherever the motion
+    // goes. null if the motion can't be used after an operator or didn't move
+    private TextRange motionRange(char operator, int count, char motion) {
+        int x = cursor.x, y = cursor.y;
+        int lastLine = content.size() - 1;
+        switch (motion) {
+            // These are worked out straight away instead of moving the cursor
+            case 'h':
+                return x == 0 ? null : TextRange.characters(max(x - count, 0), y, x, y, false, content);
+            case 'l':
+                return cursor.onCharacter() ? TextRange.characters(x, y, x + count, y, false, content) : null;
+            case '$':
+                int endY = min(y + count - 1, lastLine);
+                return TextRange.characters(x, y, content.get(endY).length(), endY, false, content);
+            case 'j':
+                return y == lastLine ? null : TextRange.lines(y, min(y + count, lastLine));
+            case 'k':
+                return y == 0 ? null : TextRange.lines(y, max(y - count, 0));
+            case '_':
+                return TextRange.lines(y, min(y + count - 1, lastLine));
+            case 'G':
+                return TextRange.lines(y, lastLine);
+            case 'w':
+            case 'W':
+                return wordRange(operator, count, motion == 'W');
+        }
+        if (OPERATOR_MOTIONS.indexOf(motion) == -1)
+            return null;
+
+        // Everything else runs the motion and puts the cursor back
+        runMotion(count, motion);
+        int endX = cursor.x;
+        int endY = cursor.y;
+        cursor.x = x;
+        cursor.y = y;
+        if (endX == x && endY == y)
+            return null;
+
+        // } with no blank line after the paragraph goes to the last character
+        // of the file, which should go too
+        boolean inclusive = "eE%".indexOf(motion) != -1
+                || motion == '}' && !content.get(endY).trim().isEmpty();
+        if (endY < y || (endY == y && endX < x)) {
+            int temp = endX;
+            endX = x;
+            x = temp;
+            temp = endY;
+            endY = y;
+            y = temp;
+        }
+
+        // Like in vim, an exclusive motion that ends at the start of a line stops
+        // at the end of the line before it, and takes whole lines if it started
+        // at or before the first non blank (d} at the start of a paragraph)
+        if (!inclusive && endX == 0 && endY > y) {
+            endY--;
+            endX = content.get(endY).length();
+            if (x <= firstNonWhitespace(content.get(y)))
+                return TextRange.lines(y, endY);
+        }
+
+        return TextRange.characters(x, y, endX, endY, inclusive, content);
+    }
 
-        int number2 = 0;
-        while (motion.length() > 0 && Character.isDigit(motion.charAt(0))) {
-            number2 = number2 * 10 + parseInt(motion.substring(0, 1));
-            motion = motion.substring(1);
+    // dw and cw. As an operator w never goes past the end of the line the last
+    // word was on, and cw changes to the end of the word like ce (same as vim)
+    private TextRange wordRange(char operator, int count, boolean bigWord) {
+        int x = cursor.x, y = cursor.y;
+        String line = content.get(y);
+        Cursor end = cursor.copy();
+
+        if (operator == 'c' && cursor.onCharacter() && !Character.isWhitespace(line.charAt(x))) {
+            // Being on the last character of a word already counts as one
+            boolean onWordEnd = bigWord
+                    ? x + 1 == line.length() || Character.isWhitespace(line.charAt(x + 1))
+                    : cursor.getCharType(x + 1, y) != cursor.getCharType(x, y);
+            if (onWordEnd)
+                count--;
+            if (bigWord)
+                end.endOfWordWithPunctuation(count);
+            else
+                end.endOfWord(count);
+            return TextRange.characters(x, y, end.x, end.y, true, content);
         }
-        if (number2 == 0)
-            number2 = 1;
 
-        if ((Character.toLowerCase(operator) == 'f' || Character.toLowerCase(operator) == 'r')
-                && this.motion.length() > 1) {
-            char charToFind = ' ';
-            if (motion.length() > 0)
-                charToFind = motion.charAt(0);
+        boolean hitEnd = false;
+        boolean changedLine = false;
+        for (int i = 0; i < count; i++) {
+            int previousX = end.x, previousY = end.y;
+            if (bigWord)
+                end.nextWordWithPunctuation();
+            else
+                end.nextWord();
 
-            if (runMotion(number, operator, number2, charToFind)) {
-                this.motion = "";
-                return;
+            if (end.x == previousX && end.y == previousY) {
+                hitEnd = true; // End of the file, take the rest of it
+                break;
             }
-        }
-        if (operator == 'y' && this.motion.length() == 1 && mode == Mode.VISUAL) {
-            runMotion(number, operator, number2, 'y');
-            this.motion = "";
-            return;
+            changedLine = end.y != previousY;
         }
 
-        if (motion.length() == 0) {
-            // Example: 3d3 or 3d meaning it's not a valid motion
-            return;
+        int endX = end.x, endY = end.y;
+        String endLine = content.get(endY);
+        // w stops on the last character of the line when the word goes up to
+        // the end of it, instead of going to the next line
+        boolean stoppedInWord = endY == y && endX > x && endX == endLine.length() - 1
+                && (bigWord ? !Character.isWhitespace(endLine.charAt(endX - 1))
+                        : end.getCharType(endX - 1, endY) == end.getCharType(endX, endY));
+        if (hitEnd || stoppedInWord) {
+            endX = endLine.length();
+        } else if (changedLine) {
+            endY--;
+            endX = content.get(endY).length();
         }
 
-        // Structure:
-        // (motion). Ex: 3dw, 2d3w, 2d$, d$, d5$
-        // (operator). Ex: 3dd, yy
-        // (operator)(motion). Ex: ciw
-
-        // First check for macro
-        if (operator == 'q' || operator == '@') {
-            if (runMotion(number, operator, number2, motion.charAt(0)))
-                this.motion = "";
-            return;
-        }
+        return TextRange.characters(x, y, endX, endY, false, content);
+    }
 
-        char c2 = motion.charAt(0);
-        if (runMotion(number, operator, number2, c2)) {
-            this.motion = "";
-            return;
+    // The range for an operator followed by a key that takes an argument: text
+    // objects (iw, a(, ip), f and F, and gg
+    private TextRange argumentRange(int count, char key, char argument) {
+        int x = cursor.x, y = cursor.y;
+        String line = content.get(y);
+        switch (key) {
+            case 'i':
+            case 'a':
+                return textObjectRange(key == 'a', count, argument);
+            case 'f':
+            case 't':
+                int index = findInLine(key, count, argument);
+                return index == -1 ? null : TextRange.characters(x, y, index, y, true, content);
+            case 'F':
+            case 'T':
+                index = findInLine(key, count, argument);
+                return index == -1 ? null : TextRange.characters(index, y, x, y, false, content);
+            case 'g':
+                if (argument == 'g')
+                    return TextRange.lines(y, min(count, content.size()) - 1);
+                return null;
+            default:
+                return null;
         }
+    }
 
-        // Structure:
-        // (operator). Ex: 3dd, yy
-        // (operator)(motion). Ex: ciw
-
-        if (!isOperator(c2) && !isValidSecondOperator(c2))
-            return;
+    /**
+     * Where f, F, t or T (the key) with {@code count} lands on the cursor's
+     * line, or -1 if there aren't count of {@code argument} that way.
+     */
+    private int findInLine(char key, int count, char argument) {
+        String line = content.get(cursor.y);
+        boolean forward = key == 'f' || key == 't';
+        int index = cursor.x;
+        for (int i = 0; i < count && index != -1; i++)
+            index = forward ? line.indexOf(argument, index + 1) : line.lastIndexOf(argument, index - 1);
+
+        if (index == -1)
+            return -1;
+        if (key == 't')
+            return index - 1;
+        if (key == 'T')
+            return index + 1;
+        return index;
+    }
 
-        char operator2 = c2;
-        motion = motion.substring(1);
+    private TextRange textObjectRange(boolean around, int count, char object) {
+        if (object == 'p') {
+            int[] lines = getParagraphIndex().paragraph(content, cursor.y, count, around);
+            return TextRange.lines(lines[0], lines[1]);
+        }
+        if (object == 'w')
+            return wordObjectRange(around);
+
+        // Aliases for other brackets
+        if (object == 'b')
+            object = '(';
+        if (object == 'B')
+            object = '{';
+        if (!isRangeOperator(object))
+            return null;
+
+        char opening = openingBracket(object);
+        Cursor bracket = cursor.copy();
+        bracket.startOfRange(opening);
+        if (bracket.getCurrentChar() != opening)
+            bracket.nextRange(opening);
+        if (bracket.getCurrentChar() != opening)
+            return null;
+
+        int startX = bracket.x, startY = bracket.y;
+        bracket.findMatchingBracket();
+        if (bracket.x == startX && bracket.y == startY)
+            return null;
+
+        if (around)
+            return TextRange.characters(startX, startY, bracket.x, bracket.y, true, content);
+        return TextRange.characters(startX + 1, startY, bracket.x, bracket.y, false, content);
+    }
 
-        if (motion.length() == 0) {
-            // Example: 3dd or 3d3$, so it's valid
-            if (runOperator(number, operator, number2, operator2))
-                this.motion = "";
-            return;
+    // iw is the word (or run of spaces) under the cursor, aw takes the spaces
+    // after it too, or the ones before it if there aren't any after
+    private TextRange wordObjectRange(boolean around) {
+        if (!cursor.onCharacter())
+            return null;
+
+        Cursor word = cursor.copy();
+        word.startOfCurrentWord();
+        int start = word.x;
+        word.endOfCurrentWord();
+        int end = word.x + 1;
+
+        if (around) {
+            String line = content.get(cursor.y);
+            int after = end;
+            while (after < line.length() && Character.isWhitespace(line.charAt(after)))
+                after++;
+
+            if (after > end)
+                end = after;
+            else
+                while (start > 0 && Character.isWhitespace(line.charAt(start - 1)))
+                    start--;
         }
 
-        // Structure:
-        // (motion)
+        return TextRange.characters(start, cursor.y, end, cursor.y, false, content);
+    }
 
-        char motion2 = motion.charAt(0);
-        if (runMotion(number, operator, number2, operator2, motion2))
-            this.motion = "";
+    private static int firstNonWhitespace(String line) {
+        for (int i = 0; i < line.length(); i++)
+            if (!Character.isWhitespace(line.charAt(i)))
+                return i;
 
+        return line.length();
     }
 
     private boolean handleMotions() {
         if (keyString.equals("Escape")) {
             motion = "";
+            keyParser.reset();
+            updateIncrementalSearch();
             return true;
         }
         if (keyString.equals("Backspace")) {
             if (motion.length() > 0) {
                 motion = motion.substring(0, motion.length() - 1);
+                updateIncrementalSearch();
+            } else if (keyParser.isPending()) {
+                keyParser.backspace(keymap.getRoot(mode));
             } else {
                 cursor.left();
             }
@@ -1349,20 +2123,20 @@ class Editor extends PComponent {
                 return true;
             }
             if (motion.length() > 0) {
-                if (isCommand(motion.charAt(0))) {
-                    if (parseCommand())
-                        motion = "";
-                    return true;
-                }
+                // The real search starts from where the cursor was before typing
+                if (incrementalSearch != null)
+                    stopIncrementalSearch();
+                if (parseCommand())
+                    motion = "";
             } else {
+                keyParser.reset();
                 if (cursor.isOnLink()) {
-                    String link = cursor.getWordWithPunctuation();
-                    openInBrowser(link);
+                    openInBrowser(cursor.getLink());
                 } else {
                     cursor.down();
                 }
-                return true;
             }
+            return true;
         }
 
         String[] keysToIgnore = { "Shift", "Tab", "Backspace", "Delete", "Control", "Alt", "Caps Lock" };
@@ -1381,23 +2155,219 @@ class Editor extends PComponent {
         if (keyString.equals("Right"))
             key = 'l';
 
-        // If the key isn't a motion, then we're done (length < 1 so that :, f, etc.
-        // still works)
-        if (!isMotion(key) && !isOperator(key) && !isCommand(key) && !isNumber(key) && motion.length() < 1)
-            return false;
-
-        motion += key;
-        if (errorMessage.length() > 0)
+        if (errorMessage.length() > 0 && !mappingFailed)
             errorMessage = "";
-        String initialMotion = String.valueOf(motion);
 
-        parseMotion();
+        // Typing out a : command or a search
+        if (motion.length() > 0) {
+            motion += key;
+            updateIncrementalSearch();
+            return true;
+        }
+
+        return processKey(key, !noremap);
+    }
+
+    /**
+     * Feeds one key to the key parser and runs the command it finishes, if it
+     * does. Returns false if the key didn't mean anything.
+     */
+    private boolean processKey(char key, boolean allowMappings) {
+        // q stops recording a macro, but only at the start of a command
+        if (key == 'q' && recordingMacro && !keyParser.isPending()) {
+            runMotion('q');
+            return true;
+        }
+
+        int result = keyParser.feed(key, keymap.getRoot(mode), allowMappings);
+        switch (result) {
+            case KeyParser.PENDING:
+                break;
+            case KeyParser.INVALID:
+                return false;
+            case KeyParser.COMMAND:
+                motion = String.valueOf(key);
+                updateIncrementalSearch();
+                break;
+            case KeyParser.MAPPING:
+                runMapping(keyParser.getMapping());
+                if (keyParser.hasLeftover())
+                    processKey(key, allowMappings);
+                break;
+            case KeyParser.REPLAY:
+                // The first one was checked already, so it runs as it is
+                char[] keys = keyParser.getReplay();
+                for (int i = 0; i < keys.length; i++)
+                    processKey(keys[i], allowMappings && i > 0);
+                break;
+            default:
+                runParsedKeys(result);
+        }
 
-        if (motion.length() == 0 && !initialMotion.equals("."))
-            previousMotion = initialMotion;
         return true;
     }
 
+    // Runs the command the key parser just finished
+    private void runParsedKeys(int result) {
+        // Read everything first, running it might feed the parser more keys
+        int count = keyParser.getCount();
+        int operatorCount = keyParser.getOperatorCount();
+        char operator = keyParser.getOperator();
+        char key = keyParser.getKey();
+        char argument = keyParser.getArgument();
+        register = keyParser.getRegister();
+
+        if (result == KeyParser.MOTION && key == '.' && mode == Mode.NORMAL) {
+            repeatChange(keyParser.hasCount() ? count : 0);
+            register = 0;
+            return;
+        }
+
+        Change change = null;
+        if (mode == Mode.NORMAL && Change.isChange(result, operator, key))
+            change = new Change(result, count, operator, operatorCount, key, argument, register);
+
+        runCommand(result, count, operator, operatorCount, key, argument);
+
+        // If it went into insert mode, what's typed is part of it too
+        if (change != null && mode == Mode.INSERT)
+            insertChange = change;
+        else if (change != null)
+            lastChange = change;
+        register = 0;
+    }
+
+    private void runCommand(int result, int count, char operator, int operatorCount, char key, char argument) {
+        switch (result) {
+            case KeyParser.MOTION:
+                // * and # don't wait for enter like the other commands
+                if (key == '*' || key == '#')
+                    parseCommandStar(key == '*');
+                else
+                    runMotion(count, key);
+                break;
+            case KeyParser.ARGUMENT:
+                runMotion(count, key, 1, argument);
+                break;
+            case KeyParser.OPERATOR_MOTION:
+                runMotion(count, operator, operatorCount, key);
+                break;
+            case KeyParser.OPERATOR_LINES:
+                runOperator(count, operator, operatorCount, key);
+                break;
+            case KeyParser.OPERATOR_ARGUMENT:
+                runMotion(count, operator, operatorCount, key, argument);
+                break;
+        }
+    }
+
+    /**
+     * . runs the last change again at the cursor, with {@code count} instead
+     * of its own count if it isn't 0. Text that was typed after it is put in
+     * with one insert instead of being typed again.
+     */
+    private void repeatChange(int count) {
+        if (lastChange == null)
+            return;
+        if (count > 0)
+            lastChange = lastChange.withCount(count);
+
+        Change change = lastChange;
+        register = change.getRegister();
+        runCommand(change.getResult(), change.getCount(), change.getOperator(), change.getOperatorCount(),
+                change.getKey(), change.getArgument());
+
+        if (mode == Mode.INSERT) {
+            String text = change.getInsertedText() == null ? "" : change.getInsertedText();
+            insertText(text);
+            repeatInsert(text);
+            mode = Mode.NORMAL;
+        }
+    }
+
+    /**
+     * Puts in the rest of the copies of a counted insert (3ihi<Esc> makes
+     * hihihi, 5o makes 5 lines) once {@code text} has been typed the first
+     * time. All of them go in with one insertText(), so 1000o-<Esc> is a
+     * single edit and a single undo step.
+     */
+    private void repeatInsert(String text) {
+        int copies = insertCount - 1;
+        insertCount = 1;
+        if (copies <= 0 || (text.isEmpty() && !insertLines))
+            return;
+
+        // The product can be bigger than an int for a big enough count, and
+        // no String can hold that much anyway
+        long length = (long) (text.length() + (insertLines ? 1 : 0)) * copies;
+        if (length + content.get(cursor.y).length() > MAX_INSERT_LENGTH) {
+            errorMessage = "Error: Too much text to insert " + (copies + 1) + " times";
+            return;
+        }
+
+        StringBuilder repeated = new StringBuilder((int) length);
+        for (int i = 0; i < copies; i++) {
+            if (insertLines)
+                repeated.append('\n');
+            repeated.append(text);
+        }
+        insertText(repeated.toString());
+    }
+
+    /**
+     * Puts {@code text} in at the cursor as if it was typed, \n starts a new
+     * line. However long it is that's one set() and one addAll(), and the
+     * cursor ends up after it.
+     */
+    private void insertText(String text) {
+        String line = content.get(cursor.y);
+        int x = Math.min(cursor.x, line.length());
+        String before = line.substring(0, x);
+        String after = line.substring(x);
+
+        String[] lines = text.split("\n", -1);
+        int last = lines.length - 1;
+        cursor.x = (last == 0 ? x : 0) + lines[last].length();
+        lines[0] = before + lines[0];
+        lines[last] = lines[last] + after;
+
+        content.set(cursor.y, lines[0]);
+        if (last > 0)
+            content.addAll(cursor.y + 1, Arrays.asList(lines).subList(1, lines.length));
+        cursor.y += last;
+        fileSaved = false;
+    }
+
+    // Types the keys a :map entry maps to
+    private void runMapping(Keymap.Mapping mapping) {
+        if (mappingFailed)
+            return;
+        if (mappingDepth >= MAX_MAPPING_DEPTH) {
+            errorMessage = "E223: Recursive mapping";
+            mappingFailed = true;
+            keyParser.reset();
+            return;
+        }
+
+        mappingDepth++;
+        boolean wasNoremap = noremap;
+        noremap |= mapping.isNoremap();
+        List<KeyStroke> keys = mapping.getTo();
+        if (!noremap && mapping.startsWithItself()) {
+            // :map n nzz, the n in nzz is the real n
+            noremap = true;
+            feedKeys(keys.subList(0, 1));
+            noremap = wasNoremap;
+            keys = keys.subList(1, keys.size());
+        }
+        feedKeys(keys);
+        noremap = wasNoremap;
+        mappingDepth--;
+
+        if (mappingDepth == 0)
+            mappingFailed = false;
+    }
+
     private void handleControlKey() {
         if (keysPressed.size() != 2)
             return;
@@ -1422,6 +2392,11 @@ class Editor extends PComponent {
             case "R":
                 redo();
                 break;
+            case "N":
+            case "P":
+                if (mode == Mode.INSERT)
+                    completeWord(keyString.equals("N"));
+                break;
             case "Backspace":
                 // TODO implement this
                 break;
@@ -1439,6 +2414,7 @@ class Editor extends PComponent {
 
     private void enterVisualMode() {
         mode = Mode.VISUAL;
+        visualLines = false;
         visualEndpoints.clear();
         visualEndpoints.add(cursor.copy().toPVector());
         visualEndpoints.add(cursor.copy().toPVector());
@@ -1446,11 +2422,14 @@ class Editor extends PComponent {
     }
 
     private boolean handleNormalMode() {
-        // Generic v press to go into visual mode
+        // Generic v press to go into visual mode (unless it's part of a command, like fv)
+        if (keyParser.isPending() || motion.length() > 0)
+            return handleMotions();
         if (Character.toLowerCase(key) == 'v') {
             mode = Mode.VISUAL;
             visualEndpoints.clear();
             motion = "";
+            visualLines = key == 'V';
         }
 
         // 'v' vs 'V'
@@ -1471,7 +2450,7 @@ class Editor extends PComponent {
 
     private boolean handleVisualMode() {
         // Escape and they aren't typing a motion right now
-        if (keyString.equals("Escape") && motion.length() == 0) {
+        if (keyString.equals("Escape") && motion.length() == 0 && !keyParser.isPending()) {
             mode = Mode.NORMAL;
             visualEndpoints.clear();
             return true;
@@ -1481,18 +2460,31 @@ class Editor extends PComponent {
     }
 
     public void keyPressed() {
-        ArrayList<String> previousContent = new ArrayList<>(content);
+        previousContent = new ArrayList<>(content);
+        changedSincePress = false;
         Mode previousMode = mode;
 
         if (keysPressed.contains("Ctrl")) {
             handleControlKey();
+            contentChanged(previousContent);
             return;
         }
 
-        if (recordingMacro) {
-            macro.add(awtEvent);
+        if (recordingMacro && !KeyStroke.isModifier(keyString)) {
+            macro.add(new KeyStroke(key, keyString));
+        }
+
+        handleKey();
+
+        // Commands that go into insert mode (o, cw) get their undo step when it ends
+        boolean changed = contentChanged(previousContent) || changedSincePress;
+        if (changed && previousMode != Mode.INSERT && mode != Mode.INSERT && key != 'u') {
+            pushToHistory();
         }
+    }
 
+    // Does whatever key and keyString say in the current mode
+    private void handleKey() {
         switch (mode) {
             case INSERT:
                 handleInsertMode();
@@ -1512,18 +2504,198 @@ class Editor extends PComponent {
                 }
                 break;
         }
+    }
 
-        if (!content.equals(previousContent) && previousMode != Mode.INSERT && key != 'u') {
-            pushToHistory();
+    /**
+     * Runs key presses as if they were typed. They don't get their own undo
+     * steps, the key press that started them makes one for all of them.
+     */
+    private void feedKeys(List<KeyStroke> keys) {
+        char previousKey = key;
+        String previousKeyString = keyString;
+        boolean wasFeedingKeys = feedingKeys;
+        feedingKeys = true;
+
+        for (KeyStroke stroke : keys) {
+            if (mappingFailed)
+                break;
+            key = stroke.getKey();
+            keyString = stroke.getKeyString();
+            handleKey();
+        }
+
+        feedingKeys = wasFeedingKeys;
+        key = previousKey;
+        keyString = previousKeyString;
+    }
+
+    /**
+     * Runs a recorded macro {@code count} times (@a, 3@a). <br>
+     * <br>
+     * Everything runs in one go without drawing in between, the indexes are
+     * only caught up when a key needs them, and the whole thing is one undo
+     * step. Like in vim it stops at the first motion that
+     * fails (j on the last line, f with nothing to find, n with no matches),
+     * which is how a macro that calls itself ends. <br>
+     * <br>
+     * A macro that runs another one (or itself) just pushes a
+     * {@link MacroFrame} in front of the ones still going, so nothing recurses
+     * however deep it goes, and the count is only a number in the frame.
+     */
+    private void runMacro(List<KeyStroke> keys, int count) {
+        if (macroFrames != null) {
+            // A macro that ends by calling itself doesn't pile up frames
+            while (!macroFrames.isEmpty() && macroFrames.peek().isFinished())
+                macroFrames.pop();
+            macroFrames.push(new MacroFrame(keys, count));
+            return;
+        }
+
+        macroFrames = new ArrayDeque<>();
+        macroFrames.push(new MacroFrame(keys, count));
+
+        char previousKey = key;
+        String previousKeyString = keyString;
+        boolean wasFeedingKeys = feedingKeys;
+        feedingKeys = true;
+
+        int keysRun = 0;
+        boolean failed = false;
+        while (!macroFrames.isEmpty()) {
+            KeyStroke stroke = macroFrames.peek().next();
+            if (stroke == null) {
+                macroFrames.pop();
+                continue;
+            }
+
+            if (keysRun++ >= MAX_MACRO_KEYS) {
+                errorMessage = "Macro stopped after " + MAX_MACRO_KEYS + " keys";
+                failed = true;
+                break;
+            }
+
+            key = stroke.getKey();
+            keyString = stroke.getKeyString();
+            motionFailed = false;
+            handleKey();
+
+            if (motionFailed || mappingFailed) {
+                failed = true;
+                break;
+            }
+        }
+
+        if (failed) {
+            keyParser.reset();
+            motion = "";
+        }
+        catchUpWithChanges();
+        macroFrames = null;
+        feedingKeys = wasFeedingKeys;
+        key = previousKey;
+        keyString = previousKeyString;
+    }
+
+    /**
+     * While a macro runs the indexes are only told about changes when
+     * something is about to use them (%, }, n etc.), then one diff covers
+     * every key since the last time. This tells them about whatever changed
+     * since {@link #previousContent} and moves it up to the content as it is
+     * now, only touching the lines that changed.
+     */
+    private void catchUpWithChanges() {
+        if (macroFrames == null)
+            return;
+
+        int[] change = findChange(previousContent);
+        if (change == null)
+            return;
+
+        int start = change[0], oldEnd = change[1], newEnd = change[2];
+        updateIndexes(previousContent, start, oldEnd, newEnd);
+
+        int common = Math.min(oldEnd, newEnd);
+        for (int i = start; i < common; i++)
+            previousContent.set(i, content.get(i));
+        if (oldEnd > newEnd)
+            previousContent.subList(newEnd, oldEnd).clear();
+        else if (newEnd > oldEnd)
+            previousContent.addAll(oldEnd, content.subList(oldEnd, newEnd));
+        changedSincePress = true;
+    }
+
+    /**
+     * Works out which lines changed since {@code previous} and tells everything
+     * that keeps track of the content. Unchanged lines are still the same string
+     * objects, so comparing references is enough. Returns false if nothing
+     * changed.
+     */
+    private boolean contentChanged(List<String> previous) {
+        int[] change = findChange(previous);
+        if (change == null)
+            return false;
+
+        updateIndexes(previous, change[0], change[1], change[2]);
+        return true;
+    }
+
+    // Lines start to oldEnd in previous became start to newEnd in content, null if nothing changed
+    private int[] findChange(List<String> previous) {
+        int start = 0;
+        int oldEnd = previous.size();
+        int newEnd = content.size();
+        while (start < oldEnd && start < newEnd && previous.get(start) == content.get(start))
+            start++;
+        while (oldEnd > start && newEnd > start && previous.get(oldEnd - 1) == content.get(newEnd - 1)) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        if (start == oldEnd && start == newEnd)
+            return null;
+
+        return new int[] { start, oldEnd, newEnd };
+    }
+
+    private void updateIndexes(List<String> previous, int start, int oldEnd, int newEnd) {
+        // The trigram index describes the file on disk, which this isn't anymore
+        if (trigramIndex != null) {
+            trigramIndex = null;
+            if (search != null)
+                search.setCandidateBlocks(null, 1);
+        }
+
+        wordIndex.update(previous, content, start, oldEnd, newEnd);
+        for (BracketIndex bracketIndex : bracketIndexes.values())
+            bracketIndex.update(content, start, oldEnd, newEnd);
+        paragraphs.update(content, start, oldEnd, newEnd);
+        if (matchIndex != null) {
+            try {
+                matchIndex.update(content, start, oldEnd, newEnd);
+            } catch (SearchEngine.TimeoutException e) {
+                matchIndex = null; // Gets rebuilt on the next n/N
+            }
         }
     }
 
     // TODO - this is quite a hacky way to do this
     public void mimicKeyPress(char key) {
         char previousKey = PComponent.key;
-        PComponent.key = key;
+        String previousKeyString = PComponent.keyString;
+        KeyStroke stroke = KeyStroke.of(key);
+        PComponent.key = stroke.getKey();
+        PComponent.keyString = stroke.getKeyString();
         keyPressed();
         PComponent.key = previousKey;
+        PComponent.keyString = previousKeyString;
+    }
+
+    private int getFirstVisibleLine() {
+        return max(0, (int) (viewportOffset.y / lineHeight));
+    }
+
+    private int getLastVisibleLine() {
+        return min(content.size() - 1, (int) ((viewportOffset.y + height - bottomMargin) / lineHeight));
     }
 
     private void updateViewportOffset() {
@@ -1581,6 +2753,13 @@ class Editor extends PComponent {
         String position = cursor.y + 1 + "," + cursor.x;
         text(position, width * 0.8, 0);
 
+        // [3/1200] while the last search is highlighted
+        if (highlightSearch != null && matchIndex != null && matchIndex.getEngine() == highlightSearch) {
+            int matchNumber = matchIndex.countUpTo(SearchEngine.position(cursor.y, cursor.x));
+            String matchCount = "[" + matchNumber + "/" + matchIndex.size() + "]";
+            text(matchCount, width * 0.8 - textWidth(matchCount + "  "), 0);
+        }
+
         int percent = (int) map(cursor.y, 0, content.size() - 1, 0, 100);
         String percentage = str(percent);
         if (percentage.equals("0"))
@@ -1598,7 +2777,9 @@ class Editor extends PComponent {
         if (errorMessage.length() > 0) {
             text(errorMessage, 5, 0);
         } else {
-            if (motion.length() == 0) {
+            if (motion.length() == 0 && keyParser.isPending()) {
+                text(keyParser.getPending(), 5, 0);
+            } else if (motion.length() == 0) {
                 String modeString = "";
                 switch (mode) {
                     case NORMAL:
@@ -1615,8 +2796,13 @@ class Editor extends PComponent {
                     modeString += "recording @" + macroKey;
 
                 text(modeString, 5, 0);
-            } else
+            } else {
                 text(motion, 5, 0);
+                if (incrementalSearch != null && incrementalSearch.isTimedOut())
+                    text("[timed out]", width * 0.8, 0);
+                else if (incrementalSearch != null && incrementalSearch.getCount() != -1)
+                    text("[" + incrementalSearch.getCount() + " matches]", width * 0.8, 0);
+            }
         }
 
         pop();
@@ -1665,98 +2851,99 @@ class Editor extends PComponent {
         return selectedCharacters;
     }
 
-    private ArrayList<Integer> getSelectedCharactersLines() {
-        ArrayList<Integer> uniqueLines = new ArrayList<>();
-        for (PVector selectedCharacter : getSelectedCharacters()) {
-            if (!uniqueLines.contains((int) selectedCharacter.y))
-                uniqueLines.add((int) selectedCharacter.y);
-        }
-        return uniqueLines;
+    // The first and last line of the selection
+    private int[] getSelectedLines() {
+        PVector[] endpoints = getSortedVisualEndpoints();
+        return new int[] { (int) endpoints[0].y, (int) endpoints[1].y };
     }
 
-    private float drawSequence(String sequence, float x, float y) {
-        String[] words = sequence.split(" ");
+    // The selection as a range, whole lines if it was made with V
+    private TextRange getVisualRange() {
+        PVector[] endpoints = getSortedVisualEndpoints();
+        if (visualLines)
+            return TextRange.lines((int) endpoints[0].y, (int) endpoints[1].y);
 
-        LinkedHashMap<String, Integer> sequences = new LinkedHashMap<>();
-        final int URL = 0;
-        final int TYPO = 1;
-        final int NORMAL = 2;
+        return TextRange.characters((int) endpoints[0].x, (int) endpoints[0].y, (int) endpoints[1].x,
+                (int) endpoints[1].y, true, content);
+    }
 
-        String currentSequence = "";
-        for (int i = 0; i < words.length; i++) {
-            String word = words[i];
-            if (isValidURL(word)) {
-                sequences.put(currentSequence, NORMAL);
-                sequences.put(word, URL);
-                currentSequence = (i != words.length - 1) ? " " : "";
-            } else {
-                if (spellCheckEnabled) {
-                    // Check if it's a typo
-                    String soloWord = word.toLowerCase();
-                    // Remove punctuation
-                    char[] ignoredCharacters = { ',', '.', '!', '?', ':', ';', '\'', '"', '(', ')', '[', ']', '{', '}',
-                            '-',
-                            '_', '1', '2', '3', '4', '5', '6', '7', '8', '9', '0' };
-                    for (char c : ignoredCharacters)
-                        soloWord = soloWord.replace(c + "", "");
-
-                    if (!dictionary.contains(soloWord) && !soloWord.equals("")) {
-                        sequences.put(currentSequence, NORMAL);
-                        sequences.put(word, TYPO);
-                        currentSequence = (i != words.length - 1) ? " " : "";
-                        continue;
-                    }
-                }
+    /**
+     * Draws a line from its tokens, merging neighbouring tokens that look the
+     * same into one text call.
+     */
+    private void drawLine(String line, int[] tokens, float x, float y, float spaceWidth) {
+        int count = LineTokenizer.count(tokens);
+        int i = 0;
+        while (i < count) {
+            int type = LineTokenizer.type(tokens, i);
+            int start = LineTokenizer.start(tokens, i);
+            int end = LineTokenizer.end(tokens, i);
+
+            if (type == LineTokenizer.TAB) {
+                x += spaceWidth * tabSize * (end - start);
+                i++;
+                continue;
+            }
 
-                currentSequence += word;
-                if (i != words.length - 1)
-                    currentSequence += " ";
+            if (type == LineTokenizer.URL) {
+                x = drawLink(line.substring(start, end), x, y);
+                i++;
+                continue;
             }
-        }
-        if (currentSequence.length() > 0)
-            sequences.put(currentSequence, NORMAL);
-
-        for (String s : sequences.keySet()) {
-            if (sequences.get(s) == URL) {
-                // Draw word
-                fill(linkColor);
-                text(s, x, y);
-
-                // Draw underline
-                stroke(linkColor);
-                strokeWeight(1);
-                float w = textWidth(s);
-                float lineY = y + lineHeight / 2 - 2;
-                line(x, lineY, x + w, lineY);
-                noStroke();
-
-                x += w;
-            } else if (sequences.get(s) == TYPO) {
-                fill(textColor);
-                text(s, x, y);
-
-                // Add squiggly underline
-                stroke(typoColor);
-                strokeWeight(1);
-                noFill();
-                beginShape(SMOOTH);
-                float w = textWidth(s);
-                float lineY = y + lineHeight / 2;
-                for (int i = 0; i < w; i++) {
-                    vertex(x + i, lineY + sin(i) * 2);
-                }
-                endShape();
-                noStroke();
 
-                x += textWidth(s);
-            } else {
+            boolean typo = spellCheckEnabled && LineTokenizer.isTypo(tokens, i);
+            int j = i + 1;
+            while (j < count && LineTokenizer.type(tokens, j) != LineTokenizer.TAB
+                    && LineTokenizer.type(tokens, j) != LineTokenizer.URL
+                    && (spellCheckEnabled && LineTokenizer.isTypo(tokens, j)) == typo)
+                j++;
+
+            String sequence = line.substring(start, LineTokenizer.end(tokens, j - 1));
+            if (typo)
+                x = drawTypo(sequence, x, y);
+            else {
                 fill(textColor);
-                text(s, x, y);
-                x += textWidth(s);
+                text(sequence, x, y);
+                x += textWidth(sequence);
             }
+            i = j;
         }
+    }
+
+    private float drawLink(String s, float x, float y) {
+        // Draw word
+        fill(linkColor);
+        text(s, x, y);
+
+        // Draw underline
+        stroke(linkColor);
+        strokeWeight(1);
+        float w = textWidth(s);
+        float lineY = y + lineHeight / 2 - 2;
+        line(x, lineY, x + w, lineY);
+        noStroke();
+
+        return x + w;
+    }
 
-        return x;
+    private float drawTypo(String s, float x, float y) {
+        fill(textColor);
+        text(s, x, y);
+
+        // Add squiggly underline
+        stroke(typoColor);
+        strokeWeight(1);
+        noFill();
+        beginShape(SMOOTH);
+        float w = textWidth(s);
+        float lineY = y + lineHeight / 2;
+        for (int i = 0; i < w; i++) {
+            vertex(x + i, lineY + sin(i) * 2);
+        }
+        endShape();
+        noStroke();
+
+        return x + w;
     }
 
     private void drawContent() {
@@ -1781,31 +2968,43 @@ class Editor extends PComponent {
             rect(selectedCharacter.x * charWidth, selectedCharacter.y * lineHeight, rectSize, lineHeight + 1);
         }
 
+        // Highlight search matches, only the ones on screen are looked for
+        SearchEngine highlight = incrementalSearch != null ? incrementalSearch.getEngine() : highlightSearch;
+        if (highlight != null) {
+            highlight.startTimer();
+            try {
+                for (int y = getFirstVisibleLine(); y <= getLastVisibleLine(); y++) {
+                    String line = content.get(y);
+                    int index = highlight.indexOf(line, 0);
+                    while (index != -1) {
+                        float matchWidth = highlight.matchLength(line, index) * charWidth;
+                        rect(index * charWidth, y * lineHeight, matchWidth, lineHeight + 1);
+                        index = highlight.indexOf(line, highlight.nextSearchStart(line, index));
+                    }
+                }
+            } catch (SearchEngine.TimeoutException e) {
+                // Not worth freezing every frame for
+                if (highlight == highlightSearch)
+                    highlightSearch = null;
+            }
+        }
+
         // Draw cursors
         fill(cursorColor);
         cursor.draw(mode);
 
-        // Draw the content line by line
+        // Draw the content line by line, starting at the first visible line
         fill(textColor);
-        for (String line : content) {
+        int firstLine = max(0, getFirstVisibleLine() - 1);
+        position.y += firstLine * lineHeight;
+        for (int i = firstLine; i < content.size(); i++) {
+            String line = content.get(i);
 
             // If position is below the viewport, stop drawing
             if (position.y > viewportOffset.y + height - bottomMargin)
                 break;
 
-            // Handle tabs
-            if (line.contains("\t")) {
-                // Split the line into an array, separated by tabs
-                String[] sequences = line.split("\t");
-                float x = position.x;
-                float y = position.y;
-                for (String sequence : sequences) {
-                    x += drawSequence(sequence, x, y);
-                    x += spaceWidth * tabSize;
-                }
-            } else {
-                drawSequence(line, position.x, position.y);
-            }
+            drawLine(line, getTokens(i), position.x, position.y, spaceWidth);
 
             // Move to the next line
             position.y += lineHeight;
@@ -1894,6 +3093,15 @@ class Editor extends PComponent {
             cursor.constrain();
         }
 
+        // Pick up the match/count from the background search
+        if (incrementalSearch != null) {
+            long match = incrementalSearch.poll();
+            if (match != -1) {
+                cursor.x = SearchEngine.column(match);
+                cursor.y = SearchEngine.line(match);
+            }
+        }
+
         updateViewportOffset();
         background(backgroundColor);
         translate(PVector.mult(viewportOffset, -1)); // -1 cause if the viewport is looking 300 down, we need to move
@@ -0,0 +1,178 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State for the search being typed after / or ? (vim's incsearch). <br>
+ * <br>
+ * Every keystroke only scans the lines on screen so typing stays fast no
+ * matter how big the file is. The first match past the screen and the total
+ * number of matches are found on a background thread and picked up by
+ * {@link #poll()} once they're ready.
+ */
+public class IncrementalSearch {
+    // One thread shared by every editor, newer searches make older ones bail out
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Incremental search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // What the background search found
+    private static class Result {
+        private final long firstMatch; // -1 if there isn't one
+        private final int count; // -1 if the search timed out
+
+        private final int generation;
+
+        private Result(int generation, long firstMatch, int count) {
+            this.generation = generation;
+            this.firstMatch = firstMatch;
+            this.count = count;
+        }
+    }
+
+    private final int originX, originY;
+    private final List<String> snapshot;
+    private final TrigramIndex trigramIndex; // null if there isn't one for the snapshot
+
+    private SearchEngine engine;
+    private boolean forward;
+    private boolean foundOnScreen = false;
+    private int count = -1; // -1 until the background search is done
+    private boolean timedOut = false;
+
+    // Bumped on every keystroke so stale background results get ignored
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Result result;
+
+    /**
+     * @param snapshot the content when the search started. It doesn't change
+     *                 while the search is being typed, and the background thread
+     *                 needs a list nothing else is modifying.
+     * @param trigramIndex lets the background search skip most of a big file,
+     *                     can be null
+     */
+    public IncrementalSearch(int originX, int originY, List<String> snapshot, TrigramIndex trigramIndex) {
+        this.originX = originX;
+        this.originY = originY;
+        this.snapshot = snapshot;
+        this.trigramIndex = trigramIndex;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginY() {
+        return originY;
+    }
+
+    public SearchEngine getEngine() {
+        return engine;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Updates the pattern. Returns where the cursor should jump to if there's a
+     * match on screen, or -1 (in which case the background search might find
+     * one further away).
+     */
+    public long update(String pattern, boolean forward, int firstVisibleLine, int lastVisibleLine) {
+        this.forward = forward;
+        int currentGeneration = generation.incrementAndGet();
+        count = -1;
+        timedOut = false;
+        foundOnScreen = false;
+
+        if (pattern.length() == 0) {
+            engine = null;
+            return -1;
+        }
+
+        engine = new SearchEngine(pattern);
+        long match = findOnScreen(firstVisibleLine, lastVisibleLine);
+        foundOnScreen = match != -1;
+
+        SearchEngine backgroundEngine = new SearchEngine(pattern);
+        if (trigramIndex != null && trigramIndex.isReady())
+            backgroundEngine.setCandidateBlocks(trigramIndex.candidates(backgroundEngine), TrigramIndex.BLOCK_LINES);
+        executor.execute(() -> {
+            if (generation.get() != currentGeneration)
+                return;
+
+            try {
+                long firstMatch = forward ? backgroundEngine.findNext(snapshot, originX, originY)
+                        : backgroundEngine.findPrevious(snapshot, originX, originY);
+
+                int[] counts = new int[2];
+                if (generation.get() == currentGeneration)
+                    backgroundEngine.count(snapshot, -1, counts);
+                result = new Result(currentGeneration, firstMatch, counts[0]);
+            } catch (SearchEngine.TimeoutException e) {
+                result = new Result(currentGeneration, -1, -1);
+            }
+        });
+
+        return match;
+    }
+
+    // Looks from the origin towards the edge of the screen in the search direction
+    private long findOnScreen(int firstVisibleLine, int lastVisibleLine) {
+        engine.startTimer();
+        try {
+            return findOnScreenUntimed(firstVisibleLine, lastVisibleLine);
+        } catch (SearchEngine.TimeoutException e) {
+            return -1;
+        }
+    }
+
+    private long findOnScreenUntimed(int firstVisibleLine, int lastVisibleLine) {
+        lastVisibleLine = Math.min(lastVisibleLine, snapshot.size() - 1);
+        if (forward) {
+            for (int y = originY; y <= lastVisibleLine; y++) {
+                int index = engine.indexOf(snapshot.get(y), y == originY ? originX + 1 : 0);
+                if (index != -1)
+                    return SearchEngine.position(y, index);
+            }
+        } else {
+            for (int y = originY; y >= Math.max(firstVisibleLine, 0); y--) {
+                int index = engine.lastIndexOf(snapshot.get(y), y == originY ? originX - 1 : Integer.MAX_VALUE);
+                if (index != -1)
+                    return SearchEngine.position(y, index);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Picks up the background result for the current pattern if it's done.
+     * Returns where the cursor should jump to (only if nothing was found on
+     * screen), or -1.
+     */
+    public long poll() {
+        Result result = this.result;
+        if (result == null || result.generation != generation.get())
+            return -1;
+
+        this.result = null;
+        count = result.count;
+        timedOut = result.count == -1;
+        return foundOnScreen ? -1 : result.firstMatch;
+    }
+
+    /**
+     * Stops any background work for this search.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+}
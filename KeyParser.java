@@ -0,0 +1,289 @@
+/**
+ * Reads normal and visual mode commands one key at a time. <br>
+ * <br>
+ * A command is ("register)(count)(key), where the key is a motion (3w), a key
+ * that takes an argument (fx, 2@q) or an operator. Operators then take (count) and either
+ * a motion (2d3w), themselves (3dd), or i, a or another argument key and its
+ * argument (ciw, dfx). Every key moves the state along and only looks at the
+ * {@link Keymap} node for that key, so nothing gets parsed twice and nothing is
+ * allocated while a command is being typed. <br>
+ * <br>
+ * :map entries are followed through the keymap's trie first. Keys that only
+ * look like the start of a mapping are held back until it's clear they aren't
+ * one, and then handed back to be run on their own.
+ */
+public class KeyParser {
+    // What feed() found
+    public static final int PENDING = 0; // Waiting for more keys
+    public static final int INVALID = 1; // Not a command, everything typed so far is dropped
+    public static final int MOTION = 2; // (count)(key): 3w
+    public static final int ARGUMENT = 3; // (count)(key)(argument): fx, 3@q, gg
+    public static final int OPERATOR_MOTION = 4; // (count)(operator)(count)(key): 2d3w
+    public static final int OPERATOR_LINES = 5; // (count)(operator)(count)(operator): 3dd
+    public static final int OPERATOR_ARGUMENT = 6; // (count)(operator)(count)(key)(argument): ciw, dfx
+    public static final int COMMAND = 7; // : / or ?, the rest is typed out until enter
+    public static final int MAPPING = 8; // A :map entry, see getMapping()
+    public static final int REPLAY = 9; // Keys that weren't a mapping after all, see getReplay()
+
+    private static final int MAX_COUNT = Integer.MAX_VALUE / 10;
+
+    private static final int START = 0;
+    private static final int OPERATOR_PENDING = 1;
+    private static final int ARGUMENT_PENDING = 2;
+    private static final int REGISTER_PENDING = 3; // After ", waiting for the register's name
+
+    private int state = START;
+    private boolean finished = false; // The last key finished a command, start over on the next one
+    private int count, operatorCount;
+    private char operator, key, argument;
+    private char register;
+
+    private Keymap.Node mapNode; // How far into a mapping's keys we are
+    private int mapStart; // Where in typed the mapping started
+    private Keymap.Mapping mapping;
+    private boolean leftover; // The last key fed wasn't part of the mapping
+
+    // What's been typed for the current command, for showing it and for .
+    private final char[] typed = new char[64];
+    private int typedLength, completedLength;
+
+    /**
+     * Takes the next key typed in the mode {@code root} belongs to. Mappings
+     * are only followed if {@code allowMappings} is set (they aren't for
+     * :noremap and keys that were already checked).
+     */
+    public int feed(char c, Keymap.Node root, boolean allowMappings) {
+        if (finished)
+            reset();
+        if (typedLength < typed.length)
+            typed[typedLength++] = c;
+
+        // Arguments and register names are always taken as they are, fx never maps x
+        if (allowMappings && state != ARGUMENT_PENDING && state != REGISTER_PENDING) {
+            Keymap.Node next = (mapNode == null ? root : mapNode).child(c);
+            if (next != null && next.isMapped()) {
+                if (mapNode == null)
+                    mapStart = typedLength - 1;
+                if (next.hasLongerMappings()) {
+                    mapNode = next;
+                    return PENDING;
+                }
+
+                return foundMapping(next.getMapping(), false);
+            }
+
+            if (mapNode != null) {
+                // c doesn't carry on the mapping, so the shorter one wins
+                if (mapNode.getMapping() != null)
+                    return foundMapping(mapNode.getMapping(), true);
+
+                mapNode = null;
+                return REPLAY;
+            }
+        }
+
+        switch (state) {
+            case START:
+                if (isCount(c, count)) {
+                    count = addDigit(count, c, MAX_COUNT);
+                    return PENDING;
+                }
+                if (c == '"') {
+                    state = REGISTER_PENDING;
+                    return PENDING;
+                }
+
+                key = c;
+                switch (kindOf(root, c)) {
+                    case Keymap.MOTION:
+                        return finish(MOTION);
+                    case Keymap.OPERATOR:
+                        operator = c;
+                        state = OPERATOR_PENDING;
+                        return PENDING;
+                    case Keymap.ARGUMENT:
+                        state = ARGUMENT_PENDING;
+                        return PENDING;
+                    case Keymap.COMMAND:
+                        return finish(COMMAND);
+                    default:
+                        return finish(INVALID);
+                }
+            case OPERATOR_PENDING:
+                if (isCount(c, operatorCount)) {
+                    // Both counts get multiplied (2d3w is d6w), keep that in range too
+                    operatorCount = addDigit(operatorCount, c, MAX_COUNT / Math.max(count, 1));
+                    return PENDING;
+                }
+
+                key = c;
+                if (c == operator)
+                    return finish(OPERATOR_LINES);
+                // Text objects (diw) and anything that takes an argument (dfx)
+                int kind = kindOf(root, c);
+                if (c == 'i' || c == 'a' || kind == Keymap.ARGUMENT) {
+                    state = ARGUMENT_PENDING;
+                    return PENDING;
+                }
+                return finish(kind == Keymap.MOTION ? OPERATOR_MOTION : INVALID);
+            case REGISTER_PENDING:
+                if (!Registers.isValid(c))
+                    return finish(INVALID);
+                // "a3dw and 3"adw are the same
+                register = c;
+                state = START;
+                return PENDING;
+            default:
+                argument = c;
+                return finish(operator == 0 ? ARGUMENT : OPERATOR_ARGUMENT);
+        }
+    }
+
+    private static boolean isCount(char c, int countSoFar) {
+        // A 0 on its own is the motion
+        return c >= '1' && c <= '9' || c == '0' && countSoFar > 0;
+    }
+
+    // Digits past the limit are eaten but ignored, like vim does, rather than
+    // wrapping the count around to a negative number
+    private static int addDigit(int countSoFar, char c, int limit) {
+        if (countSoFar > (limit - (c - '0')) / 10)
+            return countSoFar;
+        return countSoFar * 10 + (c - '0');
+    }
+
+    private static int kindOf(Keymap.Node root, char c) {
+        Keymap.Node node = root.child(c);
+        return node == null ? Keymap.NONE : node.getKind();
+    }
+
+    private int finish(int result) {
+        finished = true;
+        state = START;
+        completedLength = typedLength;
+        typedLength = 0;
+        return result;
+    }
+
+    private int foundMapping(Keymap.Mapping mapping, boolean leftover) {
+        this.mapping = mapping;
+        this.leftover = leftover;
+        mapNode = null;
+        // The mapping's keys get replaced by what it maps to, anything typed
+        // before it (like a count) still counts
+        typedLength = mapStart;
+        return MAPPING;
+    }
+
+    /**
+     * Starts over, dropping anything typed so far.
+     */
+    public void reset() {
+        state = START;
+        finished = false;
+        count = 0;
+        operatorCount = 0;
+        operator = 0;
+        key = 0;
+        argument = 0;
+        register = 0;
+        mapNode = null;
+        mapping = null;
+        leftover = false;
+        typedLength = 0;
+    }
+
+    /**
+     * Takes back the last key typed, by typing everything before it again.
+     */
+    public void backspace(Keymap.Node root) {
+        int length = typedLength - 1;
+        char[] keys = getTyped();
+        reset();
+        for (int i = 0; i < length; i++)
+            feed(keys[i], root, true);
+    }
+
+    /**
+     * Whether part of a command has been typed.
+     */
+    public boolean isPending() {
+        return !finished && typedLength > 0;
+    }
+
+    private char[] getTyped() {
+        char[] keys = new char[typedLength];
+        System.arraycopy(typed, 0, keys, 0, typedLength);
+        return keys;
+    }
+
+    /**
+     * What's been typed of the command so far, to show while it's typed.
+     */
+    public String getPending() {
+        return isPending() ? new String(typed, 0, typedLength) : "";
+    }
+
+    /**
+     * The keys of the command that just finished.
+     */
+    public String getCompleted() {
+        return new String(typed, 0, completedLength);
+    }
+
+    /**
+     * After {@link #REPLAY}, the keys that were held back as the start of a
+     * mapping. The first should be run without looking for mappings again.
+     * The parser starts from where it was before them.
+     */
+    public char[] getReplay() {
+        char[] keys = new char[typedLength - mapStart];
+        System.arraycopy(typed, mapStart, keys, 0, keys.length);
+        typedLength = mapStart;
+        return keys;
+    }
+
+    public Keymap.Mapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * After {@link #MAPPING}, whether the key that was just fed still has to
+     * be run (it showed that a shorter mapping was the one meant).
+     */
+    public boolean hasLeftover() {
+        return leftover;
+    }
+
+    public int getCount() {
+        return Math.max(count, 1);
+    }
+
+    // Whether a count was typed at all, getCount() is 1 either way
+    public boolean hasCount() {
+        return count > 0;
+    }
+
+    public int getOperatorCount() {
+        return Math.max(operatorCount, 1);
+    }
+
+    public char getOperator() {
+        return operator;
+    }
+
+    public char getKey() {
+        return key;
+    }
+
+    public char getArgument() {
+        return argument;
+    }
+
+    /**
+     * The register typed before the command ("a), or 0 if there wasn't one.
+     */
+    public char getRegister() {
+        return register;
+    }
+}
@@ -0,0 +1,122 @@
+import java.awt.event.KeyEvent;
+import java.util.*;
+
+/**
+ * One key press, as the key char and key name that keyPressed() reads. <br>
+ * <br>
+ * Key sequences can be written in vim's notation, where special keys are
+ * spelled out in angle brackets: "Ahello<Esc>" is A, h, e, l, l, o and then
+ * escape. <lt> is a literal <.
+ */
+public class KeyStroke {
+    // Keys that get spelled out, the name keyPressed() sees for them and their char
+    private static final String[] NOTATIONS = { "Esc", "CR", "BS", "Tab", "Left", "Right", "Up", "Down" };
+    private static final String[] KEY_STRINGS = { "Escape", "Enter", "Backspace", "Tab", "Left", "Right", "Up",
+            "Down" };
+    private static final char[] KEYS = { 27, '\n', '\b', '\t', KeyEvent.CHAR_UNDEFINED, KeyEvent.CHAR_UNDEFINED,
+            KeyEvent.CHAR_UNDEFINED, KeyEvent.CHAR_UNDEFINED };
+
+    private final char key;
+    private final String keyString;
+
+    public KeyStroke(char key, String keyString) {
+        this.key = key;
+        this.keyString = keyString;
+    }
+
+    /**
+     * The key press that types {@code c}.
+     */
+    public static KeyStroke of(char c) {
+        for (int i = 0; i < KEYS.length; i++)
+            if (KEYS[i] == c && c != KeyEvent.CHAR_UNDEFINED)
+                return new KeyStroke(c, KEY_STRINGS[i]);
+
+        return new KeyStroke(c, KeyEvent.getKeyText(KeyEvent.getExtendedKeyCodeForChar(c)));
+    }
+
+    /**
+     * True for keys that only change what another key types (shift etc.),
+     * they aren't recorded into macros.
+     */
+    public static boolean isModifier(String keyString) {
+        switch (keyString) {
+            case "Shift":
+            case "Ctrl":
+            case "Control":
+            case "Alt":
+            case "Meta":
+            case "Caps Lock":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public char getKey() {
+        return key;
+    }
+
+    public String getKeyString() {
+        return keyString;
+    }
+
+    /**
+     * Turns vim style notation into key presses. Anything in angle brackets that
+     * isn't a known key is typed out as is.
+     */
+    public static List<KeyStroke> parse(String keys) {
+        List<KeyStroke> strokes = new ArrayList<>(keys.length());
+        for (int i = 0; i < keys.length(); i++) {
+            char c = keys.charAt(i);
+            int close = c == '<' ? keys.indexOf('>', i) : -1;
+            KeyStroke named = close == -1 ? null : parseName(keys.substring(i + 1, close));
+            if (named != null) {
+                strokes.add(named);
+                i = close;
+            } else {
+                strokes.add(of(c));
+            }
+        }
+
+        return strokes;
+    }
+
+    private static KeyStroke parseName(String name) {
+        for (int i = 0; i < NOTATIONS.length; i++)
+            if (NOTATIONS[i].equalsIgnoreCase(name))
+                return new KeyStroke(KEYS[i], KEY_STRINGS[i]);
+
+        // A few other names vim knows
+        if (name.equalsIgnoreCase("Enter") || name.equalsIgnoreCase("Return"))
+            return of('\n');
+        if (name.equalsIgnoreCase("Space"))
+            return of(' ');
+        if (name.equalsIgnoreCase("lt"))
+            return of('<');
+        return null;
+    }
+
+    /**
+     * Writes key presses back out in vim style notation, the opposite of
+     * {@link #parse(String)}.
+     */
+    public static String toString(List<KeyStroke> strokes) {
+        StringBuilder builder = new StringBuilder();
+        for (KeyStroke stroke : strokes)
+            builder.append(stroke);
+
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        for (int i = 0; i < KEY_STRINGS.length; i++)
+            if (KEY_STRINGS[i].equals(keyString))
+                return "<" + NOTATIONS[i] + ">";
+
+        if (key == '<')
+            return "<lt>";
+        return String.valueOf(key);
+    }
+}
@@ -0,0 +1,212 @@
+import java.util.*;
+
+/**
+ * What every key does in normal and visual mode, as one trie per mode. <br>
+ * <br>
+ * The built in keys are one level deep and say what kind of key they are
+ * (see {@link #MOTION} etc.), which is all {@link KeyParser} needs to know to
+ * tell when a command is finished. :map and :noremap entries go into the same
+ * tries, so "gj" or "<Space>w" are just a path of nodes ending in a
+ * {@link Mapping}. Children are looked up by indexing an array, so finding
+ * what a key does never scans anything.
+ */
+public class Keymap {
+    // What a built in key does
+    public static final int NONE = 0;
+    public static final int MOTION = 1; // Runs straight away: w, $, x, p...
+    public static final int OPERATOR = 2; // Waits for a motion: c, d, y
+    public static final int ARGUMENT = 3; // Takes whatever key comes next: f, r, q, @, g (and i, a in visual)
+    public static final int COMMAND = 4; // Typed out until enter: :, / and ?
+
+    private static final int TABLE_SIZE = 128;
+
+    public static class Mapping {
+        private final String keys;
+        private final List<KeyStroke> to;
+        private final boolean noremap;
+
+        private Mapping(String keys, List<KeyStroke> to, boolean noremap) {
+            this.keys = keys;
+            this.to = to;
+            this.noremap = noremap;
+        }
+
+        public String getKeys() {
+            return keys;
+        }
+
+        public List<KeyStroke> getTo() {
+            return to;
+        }
+
+        public boolean isNoremap() {
+            return noremap;
+        }
+
+        // Vim doesn't map the first key again when the keys map to something
+        // starting with themselves, like :map n nzz
+        public boolean startsWithItself() {
+            if (to.size() < keys.length())
+                return false;
+            for (int i = 0; i < keys.length(); i++)
+                if (to.get(i).getKey() != keys.charAt(i))
+                    return false;
+
+            return true;
+        }
+    }
+
+    public static class Node {
+        private Node[] children; // Indexed by key, made when the first child is added
+        private HashMap<Character, Node> otherChildren; // Keys that don't fit in the array
+        private int kind = NONE;
+        private boolean generic; // Does the same thing in normal and visual mode
+        private Mapping mapping;
+        private int mappingsBelow; // Mappings at or under this node
+
+        public Node child(char key) {
+            if (key < TABLE_SIZE)
+                return children == null ? null : children[key];
+
+            return otherChildren == null ? null : otherChildren.get(key);
+        }
+
+        private Node addChild(char key) {
+            Node child = child(key);
+            if (child != null)
+                return child;
+
+            child = new Node();
+            if (key < TABLE_SIZE) {
+                if (children == null)
+                    children = new Node[TABLE_SIZE];
+                children[key] = child;
+            } else {
+                if (otherChildren == null)
+                    otherChildren = new HashMap<>();
+                otherChildren.put(key, child);
+            }
+            return child;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public boolean isGeneric() {
+            return generic;
+        }
+
+        public Mapping getMapping() {
+            return mapping;
+        }
+
+        // Whether some longer mapping starts with the keys that led here
+        public boolean hasLongerMappings() {
+            return mappingsBelow > (mapping == null ? 0 : 1);
+        }
+
+        public boolean isMapped() {
+            return mappingsBelow > 0;
+        }
+    }
+
+    private final Node normal = new Node();
+    private final Node visual = new Node();
+
+    public Node getRoot(Mode mode) {
+        return mode == Mode.VISUAL ? visual : normal;
+    }
+
+    /**
+     * Says what {@code key} does on its own in {@code mode}.
+     */
+    public void define(Mode mode, char key, int kind) {
+        getRoot(mode).addChild(key).kind = kind;
+    }
+
+    /**
+     * Same as {@link #define(Mode, char, int)} for both modes, for keys that do
+     * the same thing in either.
+     */
+    public void defineGeneric(char key, int kind) {
+        for (Node root : new Node[] { normal, visual }) {
+            Node node = root.addChild(key);
+            node.kind = kind;
+            node.generic = true;
+        }
+    }
+
+    /**
+     * Whether {@code key} does the same thing in normal and visual mode (see
+     * {@link #defineGeneric(char, int)}).
+     */
+    public boolean isGeneric(char key) {
+        Node node = normal.child(key);
+        return node != null && node.generic;
+    }
+
+    /**
+     * Adds (or replaces) a mapping from {@code keys} to {@code to} in
+     * {@code mode}. The keys of a mapping are matched by their chars.
+     */
+    public void map(Mode mode, String keys, List<KeyStroke> to, boolean noremap) {
+        Node root = getRoot(mode);
+        unmap(mode, keys);
+
+        Node node = root;
+        root.mappingsBelow++;
+        for (int i = 0; i < keys.length(); i++) {
+            node = node.addChild(keys.charAt(i));
+            node.mappingsBelow++;
+        }
+        node.mapping = new Mapping(keys, to, noremap);
+    }
+
+    /**
+     * Removes the mapping of {@code keys} in {@code mode}. Returns false if
+     * there wasn't one.
+     */
+    public boolean unmap(Mode mode, String keys) {
+        Node root = getRoot(mode);
+        Node node = root;
+        for (int i = 0; i < keys.length() && node != null; i++)
+            node = node.child(keys.charAt(i));
+        if (node == null || node.mapping == null)
+            return false;
+
+        // Nodes are left in place, they only stop counting as mapped
+        node = root;
+        root.mappingsBelow--;
+        for (int i = 0; i < keys.length(); i++) {
+            node = node.child(keys.charAt(i));
+            node.mappingsBelow--;
+        }
+        node.mapping = null;
+        return true;
+    }
+
+    /**
+     * Every mapping in {@code mode}, in key order.
+     */
+    public List<Mapping> getMappings(Mode mode) {
+        List<Mapping> mappings = new ArrayList<>();
+        collectMappings(getRoot(mode), mappings);
+        return mappings;
+    }
+
+    private void collectMappings(Node node, List<Mapping> mappings) {
+        if (!node.isMapped())
+            return;
+        if (node.mapping != null)
+            mappings.add(node.mapping);
+
+        if (node.children != null)
+            for (Node child : node.children)
+                if (child != null)
+                    collectMappings(child, mappings);
+        if (node.otherChildren != null)
+            for (Node child : new TreeMap<>(node.otherChildren).values())
+                collectMappings(child, mappings);
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+
+/**
+ * One bit per line of the content that can follow edits. <br>
+ * <br>
+ * When lines get added or removed every bit after them moves with them, a
+ * whole 64 lines at a time, so keeping it up to date costs a few thousand
+ * word copies even on a million line file.
+ */
+public class LineBitSet {
+    private BitSet bits = new BitSet();
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int line) {
+        return bits.get(line);
+    }
+
+    public void set(int line, boolean value) {
+        bits.set(line, value);
+    }
+
+    /**
+     * Returns the first set line at or after {@code line}, or -1.
+     */
+    public int nextSetBit(int line) {
+        int next = bits.nextSetBit(line);
+        return next >= size ? -1 : next;
+    }
+
+    /**
+     * Returns the first clear line at or after {@code line}, or -1.
+     */
+    public int nextClearBit(int line) {
+        int next = bits.nextClearBit(line);
+        return next >= size ? -1 : next;
+    }
+
+    public int previousSetBit(int line) {
+        return bits.previousSetBit(Math.min(line, size - 1));
+    }
+
+    public int previousClearBit(int line) {
+        return bits.previousClearBit(Math.min(line, size - 1));
+    }
+
+    /**
+     * Lines [start, oldEnd) were replaced by [start, newEnd). Bits after oldEnd
+     * move to match and the replaced ones are cleared, ready to be set again.
+     */
+    public void replace(int start, int oldEnd, int newEnd) {
+        int delta = newEnd - oldEnd;
+        int newSize = size + delta;
+        if (delta != 0) {
+            long[] words = bits.toLongArray();
+            long[] moved = new long[(newSize + 63) >>> 6];
+
+            // Everything before oldEnd stays where it is
+            int keep = Math.min(oldEnd, newEnd);
+            for (int i = 0; i < keep >>> 6 && i < words.length; i++)
+                moved[i] = words[i];
+            if ((keep & 63) != 0)
+                moved[keep >>> 6] = wordAt(words, keep & ~63) & ((1L << (keep & 63)) - 1);
+
+            // Everything after moves by delta
+            for (int i = newEnd >>> 6; i < moved.length; i++) {
+                int source = i * 64 - delta;
+                long word = source >= 0 ? wordAt(words, source) : wordAt(words, 0) << -source;
+                int low = Math.max(newEnd - i * 64, 0);
+                int high = Math.min(newSize - i * 64, 64);
+                if (low >= high)
+                    continue;
+
+                long mask = (high == 64 ? -1L : (1L << high) - 1) & (-1L << low);
+                moved[i] |= word & mask;
+            }
+
+            bits = BitSet.valueOf(moved);
+            size = newSize;
+        }
+
+        bits.clear(start, newEnd);
+    }
+
+    /**
+     * Empties it and makes it {@code size} lines long.
+     */
+    public void reset(int size) {
+        bits.clear();
+        this.size = size;
+    }
+
+    // The 64 bits starting at bit
+    private static long wordAt(long[] words, int bit) {
+        int index = bit >>> 6;
+        int offset = bit & 63;
+        long low = index < words.length ? words[index] >>> offset : 0;
+        if (offset == 0)
+            return low;
+
+        long high = index + 1 < words.length ? words[index + 1] << (64 - offset) : 0;
+        return low | high;
+    }
+}
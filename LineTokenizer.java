@@ -0,0 +1,202 @@
+import java.util.Arrays;
+
+/**
+ * Splits lines into typed spans (words, numbers, punctuation, spaces, tabs and
+ * links) in a single pass, and spell checks each word while it's at it. <br>
+ * <br>
+ * Rendering, cursor motions and spell check all read from the same spans, so a
+ * line only gets scanned again after it changes. Lines are immutable strings,
+ * so a cached line is valid for as long as it's still the exact same string.
+ * <br>
+ * <br>
+ * Each line's spans live in one int array: index 0 holds the number of spans,
+ * followed by (type, start, end) for every span. When a line changes its old
+ * array gets reused if it's big enough.
+ */
+public class LineTokenizer {
+    public static final int WORD = 0;
+    public static final int NUMBER = 1;
+    public static final int PUNCTUATION = 2;
+    public static final int WHITESPACE = 3;
+    public static final int TAB = 4;
+    public static final int URL = 5;
+
+    // Or'd onto the type of every span in a misspelled word
+    public static final int TYPO = 1 << 8;
+    private static final int TYPE_MASK = TYPO - 1;
+
+    // Characters ignored when spell checking a word
+    private static final String IGNORED_CHARACTERS = ",.!?:;'\"()[]{}-_0123456789";
+
+    private Editor editor;
+
+    private String[] lines = new String[0];
+    private int[][] tokens = new int[0][];
+    private int[] dictionaryVersions = new int[0];
+    // Bumped whenever words are learned or unlearned so typos get rechecked
+    private int dictionaryVersion = 0;
+    private boolean spellCheck = true; // Off skips the dictionary lookups, nothing gets flagged as a typo
+
+    private StringBuilder spellWord = new StringBuilder();
+
+    public LineTokenizer(Editor editor) {
+        this.editor = editor;
+    }
+
+    public void dictionaryChanged() {
+        dictionaryVersion++;
+    }
+
+    /**
+     * Turns spell checking on or off (:spellcheck). Lines are checked again
+     * the next time they're asked for.
+     */
+    public void setSpellCheck(boolean spellCheck) {
+        if (this.spellCheck == spellCheck)
+            return;
+
+        this.spellCheck = spellCheck;
+        dictionaryVersion++;
+    }
+
+    /**
+     * Returns the spans for {@code line}, which is the y'th line of the content.
+     */
+    public int[] getTokens(int y, String line) {
+        if (y >= lines.length) {
+            int capacity = Math.max(y + 1, lines.length * 2);
+            lines = Arrays.copyOf(lines, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+            dictionaryVersions = Arrays.copyOf(dictionaryVersions, capacity);
+        }
+
+        if (lines[y] != line || dictionaryVersions[y] != dictionaryVersion) {
+            lines[y] = line;
+            tokens[y] = tokenize(line, tokens[y]);
+            dictionaryVersions[y] = dictionaryVersion;
+        }
+        return tokens[y];
+    }
+
+    public static int count(int[] tokens) {
+        return tokens[0];
+    }
+
+    public static int type(int[] tokens, int i) {
+        return tokens[1 + i * 3] & TYPE_MASK;
+    }
+
+    public static boolean isTypo(int[] tokens, int i) {
+        return (tokens[1 + i * 3] & TYPO) != 0;
+    }
+
+    public static int start(int[] tokens, int i) {
+        return tokens[2 + i * 3];
+    }
+
+    public static int end(int[] tokens, int i) {
+        return tokens[3 + i * 3];
+    }
+
+    /**
+     * Returns the index of the span containing {@code x}, or -1 if x is outside
+     * the line.
+     */
+    public static int tokenAt(int[] tokens, int x) {
+        int low = 0;
+        int high = count(tokens) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (x < start(tokens, middle))
+                high = middle - 1;
+            else if (x >= end(tokens, middle))
+                low = middle + 1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the type a single character would get.
+     */
+    public static int classify(char c) {
+        if (c == ' ')
+            return WHITESPACE;
+        if (c == '\t')
+            return TAB;
+        if (Character.isLetter(c))
+            return WORD;
+        if (Character.isDigit(c))
+            return NUMBER;
+
+        return PUNCTUATION;
+    }
+
+    private int[] tokenize(String line, int[] reuse) {
+        int[] result = reuse != null ? reuse : new int[1 + 3 * 4];
+        int count = 0;
+
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            int type = classify(c);
+
+            // Spaces and tabs separate words
+            if (type == WHITESPACE || type == TAB) {
+                int start = i;
+                while (i < length && line.charAt(i) == c)
+                    i++;
+                result = add(result, count++, type, start, i);
+                continue;
+            }
+
+            int wordStart = i;
+            int wordEnd = i;
+            while (wordEnd < length && line.charAt(wordEnd) != ' ' && line.charAt(wordEnd) != '\t')
+                wordEnd++;
+
+            if (LinkDetector.isLink(line, wordStart, wordEnd)) {
+                result = add(result, count++, URL, wordStart, wordEnd);
+                i = wordEnd;
+                continue;
+            }
+
+            // Split the word into runs of the same type, building up the spell
+            // checked version of it as we go
+            int firstToken = count;
+            spellWord.setLength(0);
+            while (i < wordEnd) {
+                int start = i;
+                type = classify(line.charAt(i));
+                while (i < wordEnd && classify(line.charAt(i)) == type) {
+                    char character = line.charAt(i);
+                    if (spellCheck && IGNORED_CHARACTERS.indexOf(character) == -1)
+                        spellWord.append(Character.toLowerCase(character));
+                    i++;
+                }
+                result = add(result, count++, type, start, i);
+            }
+
+            if (spellWord.length() > 0 && !editor.isInDictionary(spellWord))
+                for (int token = firstToken; token < count; token++)
+                    result[1 + token * 3] |= TYPO;
+        }
+
+        result[0] = count;
+        return result;
+    }
+
+    private static int[] add(int[] tokens, int index, int type, int start, int end) {
+        int position = 1 + index * 3;
+        if (position + 3 > tokens.length)
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
+
+        tokens[position] = type;
+        tokens[position + 1] = start;
+        tokens[position + 2] = end;
+        return tokens;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Finds links in lines of text without allocating. <br>
+ * <br>
+ * A link is a whole word (separated by spaces or tabs) that starts with a
+ * known scheme and only contains characters that are legal in a URI. This is
+ * roughly what {@code new URL(word).toURI()} accepts, minus the exception
+ * being thrown for every normal word.
+ */
+public class LinkDetector {
+    /**
+     * Returns true if the characters from {@code start} to {@code end} form a
+     * link.
+     */
+    public static boolean isLink(CharSequence s, int start, int end) {
+        int afterScheme = matchScheme(s, start, end);
+        if (afterScheme == -1)
+            return false;
+
+        for (int i = afterScheme; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                // Escapes must be followed by two hex digits
+                if (i + 2 >= end || !isHex(s.charAt(i + 1)) || !isHex(s.charAt(i + 2)))
+                    return false;
+                i += 2;
+            } else if (!isUriChar(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Returns the index after the scheme (and "//" + host for hierarchical
+    // schemes), or -1 if there isn't a known one
+    private static int matchScheme(CharSequence s, int start, int end) {
+        int colon = -1;
+        for (int i = start; i < end && i - start <= 6; i++) {
+            if (s.charAt(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon == -1)
+            return -1;
+
+        if (regionMatches(s, start, colon, "mailto") || regionMatches(s, start, colon, "file"))
+            return colon + 1 < end ? colon + 1 : -1;
+
+        if (!regionMatches(s, start, colon, "http") && !regionMatches(s, start, colon, "https")
+                && !regionMatches(s, start, colon, "ftp"))
+            return -1;
+
+        // Needs "//" and at least one character of host
+        if (colon + 3 >= end || s.charAt(colon + 1) != '/' || s.charAt(colon + 2) != '/')
+            return -1;
+        char hostStart = s.charAt(colon + 3);
+        if (!Character.isLetterOrDigit(hostStart) && hostStart != '[')
+            return -1;
+
+        return colon + 3;
+    }
+
+    private static boolean regionMatches(CharSequence s, int start, int end, String scheme) {
+        if (end - start != scheme.length())
+            return false;
+
+        for (int i = 0; i < scheme.length(); i++)
+            if (Character.toLowerCase(s.charAt(start + i)) != scheme.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    // Unreserved, reserved and the few other characters java.net.URI lets through
+    private static boolean isUriChar(char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))
+            return true;
+
+        switch (c) {
+            case '-':
+            case '.':
+            case '_':
+            case '~':
+            case ':':
+            case '/':
+            case '?':
+            case '#':
+            case '[':
+            case ']':
+            case '@':
+            case '!':
+            case '$':
+            case '&':
+            case '\'':
+            case '(':
+            case ')':
+            case '*':
+            case '+':
+            case ',':
+            case ';':
+            case '=':
+                return true;
+        }
+
+        // URI allows non-ASCII "other" characters that aren't spaces or controls
+        return c > 127 && !Character.isSpaceChar(c) && !Character.isISOControl(c);
+    }
+}
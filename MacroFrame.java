@@ -0,0 +1,40 @@
+import java.util.*;
+
+/**
+ * One @ that's still running: the macro's keys, how far into them it is and
+ * how many more times it goes after this one. <br>
+ * <br>
+ * 3@a is one frame that goes round three times rather than the keys three
+ * times over, so how much a macro takes up doesn't depend on its count. A
+ * macro that runs another one (or itself) pushes a frame on top of its own.
+ */
+public class MacroFrame {
+    private final List<KeyStroke> keys;
+    private int position = 0;
+    private int repeats; // Including the one that's going now
+
+    public MacroFrame(List<KeyStroke> keys, int repeats) {
+        this.keys = keys;
+        this.repeats = repeats;
+    }
+
+    /**
+     * Whether every key has run the last time round, so nothing's left.
+     */
+    public boolean isFinished() {
+        return repeats <= 1 && position == keys.size() || repeats <= 0;
+    }
+
+    /**
+     * The next key to run, or null once it's been round every time.
+     */
+    public KeyStroke next() {
+        if (position == keys.size()) {
+            repeats--;
+            position = 0;
+        }
+        if (repeats <= 0 || keys.isEmpty())
+            return null;
+        return keys.get(position++);
+    }
+}
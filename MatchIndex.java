@@ -0,0 +1,126 @@
+import java.util.*;
+
+/**
+ * Every match of the last search, kept as a sorted array of packed positions
+ * (see {@link SearchEngine#position(int, int)}). <br>
+ * <br>
+ * n and N binary search it from the cursor instead of scanning the file, and
+ * edits only rescan the lines that changed.
+ */
+public class MatchIndex {
+    private final SearchEngine engine;
+
+    private long[] positions;
+    private int lineCount;
+
+    public MatchIndex(SearchEngine engine, List<String> lines) {
+        this.engine = engine;
+        positions = engine.findAll(lines);
+        lineCount = lines.size();
+    }
+
+    public SearchEngine getEngine() {
+        return engine;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public long get(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Called after lines [start, oldEnd) were replaced by lines [start, newEnd).
+     */
+    public void update(List<String> lines, int start, int oldEnd, int newEnd) {
+        // Something changed the content without telling us, start over
+        if (lineCount - (oldEnd - start) + (newEnd - start) != lines.size()) {
+            positions = engine.findAll(lines);
+            lineCount = lines.size();
+            return;
+        }
+
+        int removedFrom = lowerBound(SearchEngine.position(start, 0));
+        int removedTo = lowerBound(SearchEngine.position(oldEnd, 0));
+        long[] inserted = engine.findAll(lines, start, newEnd);
+        long shift = (long) (newEnd - oldEnd) << 32;
+
+        if (shift == 0 && inserted.length == removedTo - removedFrom) {
+            // Usual case when typing, the matches can be swapped in place
+            System.arraycopy(inserted, 0, positions, removedFrom, inserted.length);
+        } else {
+            long[] updated = new long[positions.length - (removedTo - removedFrom) + inserted.length];
+            System.arraycopy(positions, 0, updated, 0, removedFrom);
+            System.arraycopy(inserted, 0, updated, removedFrom, inserted.length);
+            int position = removedFrom + inserted.length;
+            for (int i = removedTo; i < positions.length; i++)
+                updated[position++] = positions[i] + shift;
+            positions = updated;
+        }
+
+        lineCount = lines.size();
+    }
+
+    /**
+     * Returns the index of the first match after {@code position}, wrapping
+     * around to the first one. -1 if there aren't any matches.
+     */
+    public int next(long position) {
+        if (positions.length == 0)
+            return -1;
+
+        int index = upperBound(position);
+        return index == positions.length ? 0 : index;
+    }
+
+    /**
+     * Returns the index of the last match before {@code position}, wrapping
+     * around to the last one. -1 if there aren't any matches.
+     */
+    public int previous(long position) {
+        if (positions.length == 0)
+            return -1;
+
+        int index = lowerBound(position) - 1;
+        return index < 0 ? positions.length - 1 : index;
+    }
+
+    /**
+     * Returns how many matches start at or before {@code position}.
+     */
+    public int countUpTo(long position) {
+        return upperBound(position);
+    }
+
+    // Index of the first position >= position
+    private int lowerBound(long position) {
+        int low = 0;
+        int high = positions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions[middle] < position)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    // Index of the first position > position
+    private int upperBound(long position) {
+        int low = 0;
+        int high = positions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions[middle] <= position)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+}
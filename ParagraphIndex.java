@@ -0,0 +1,233 @@
+import java.util.*;
+
+/**
+ * Paragraphs and sentences, for {, }, (, ), ip and ap. <br>
+ * <br>
+ * Paragraphs are separated by blank lines (empty or only whitespace), which
+ * are kept in a {@link LineBitSet} so finding the next or previous one is a
+ * scan over 64 lines at a time. <br>
+ * <br>
+ * A sentence ends at a ., ! or ? (plus any closing brackets or quotes)
+ * followed by a space or the end of the line. The sentences of a paragraph
+ * are found the first time they're needed and kept until one of its lines
+ * changes.
+ */
+public class ParagraphIndex {
+    private static final String SENTENCE_ENDS = ".!?";
+    private static final String CLOSING_CHARACTERS = ")]\"'";
+
+    private final LineBitSet blankLines = new LineBitSet();
+    private boolean built = false;
+
+    // Sentence starts of a paragraph, only valid while its lines are the same strings
+    private static class Sentences {
+        private final String[] lines;
+        private final long[] starts;
+
+        private Sentences(String[] lines, long[] starts) {
+            this.lines = lines;
+            this.starts = starts;
+        }
+    }
+
+    private final HashMap<Integer, Sentences> sentences = new HashMap<>();
+
+    /**
+     * Called after lines [start, oldEnd) were replaced by lines [start, newEnd).
+     */
+    public void update(List<String> lines, int start, int oldEnd, int newEnd) {
+        if (!built)
+            return;
+
+        if (blankLines.size() - (oldEnd - start) + (newEnd - start) != lines.size()) {
+            built = false;
+            return;
+        }
+
+        blankLines.replace(start, oldEnd, newEnd);
+        for (int y = start; y < newEnd; y++)
+            blankLines.set(y, isBlank(lines.get(y)));
+
+        // Every paragraph after the edit moved
+        if (oldEnd != newEnd)
+            sentences.clear();
+    }
+
+    private void build(List<String> lines) {
+        if (built && blankLines.size() == lines.size())
+            return;
+
+        blankLines.reset(lines.size());
+        for (int y = 0; y < lines.size(); y++)
+            blankLines.set(y, isBlank(lines.get(y)));
+        sentences.clear();
+        built = true;
+    }
+
+    private static boolean isBlank(String line) {
+        for (int i = 0; i < line.length(); i++)
+            if (!Character.isWhitespace(line.charAt(i)))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Returns the blank line after the paragraph {@code y} is in (or the one
+     * after, if y is already blank), or -1 if that's the end of the file. This
+     * is where } goes.
+     */
+    public int nextBoundary(List<String> lines, int y) {
+        build(lines);
+        if (blankLines.get(y)) {
+            y = blankLines.nextClearBit(y);
+            if (y == -1)
+                return -1;
+        }
+
+        return blankLines.nextSetBit(y);
+    }
+
+    /**
+     * Returns the blank line before the paragraph {@code y} is in (or the one
+     * before, if y is already blank), or -1 if that's the start of the file.
+     * This is where { goes.
+     */
+    public int previousBoundary(List<String> lines, int y) {
+        build(lines);
+        int paragraph = blankLines.previousClearBit(y);
+        return paragraph == -1 ? -1 : blankLines.previousSetBit(paragraph);
+    }
+
+    // First line of the run of blank (or non blank) lines y is in
+    private int runStart(int y) {
+        return (blankLines.get(y) ? blankLines.previousClearBit(y) : blankLines.previousSetBit(y)) + 1;
+    }
+
+    // Last line of the run of blank (or non blank) lines y is in
+    private int runEnd(int y) {
+        int next = blankLines.get(y) ? blankLines.nextClearBit(y) : blankLines.nextSetBit(y);
+        return next == -1 ? blankLines.size() - 1 : next - 1;
+    }
+
+    /**
+     * Returns the {first, last} line of {@code count} paragraphs starting at
+     * the one {@code y} is in. For ip blank lines between paragraphs count as
+     * paragraphs of their own, for ap (around) they're part of the paragraph
+     * before them.
+     */
+    public int[] paragraph(List<String> lines, int y, int count, boolean around) {
+        build(lines);
+        int first = runStart(y);
+        int last = y;
+        int runs = around ? count * 2 : count;
+        for (int i = 0; i < runs && last < lines.size(); i++)
+            last = runEnd(last) + 1;
+        last = Math.min(last, lines.size()) - 1;
+
+        // ap at the end of the file takes the blank lines before it instead of after
+        if (around && !blankLines.get(y) && !blankLines.get(last) && first > 0)
+            first = runStart(first - 1);
+
+        return new int[] { first, last };
+    }
+
+    /**
+     * Returns where the next sentence after (x, y) starts (see
+     * {@link SearchEngine#position(int, int)}). Blank lines after a paragraph
+     * count too, like in vim. -1 if there's nothing after.
+     */
+    public long nextSentence(List<String> lines, int x, int y) {
+        build(lines);
+        if (blankLines.get(y)) {
+            int paragraph = blankLines.nextClearBit(y);
+            if (paragraph == -1)
+                return -1;
+            return getSentences(lines, paragraph).starts[0];
+        }
+
+        long position = SearchEngine.position(y, x);
+        for (long start : getSentences(lines, y).starts)
+            if (start > position)
+                return start;
+
+        int end = runEnd(y) + 1;
+        return end < lines.size() ? SearchEngine.position(end, 0) : -1;
+    }
+
+    /**
+     * Returns where the sentence before (x, y) starts (the start of the current
+     * one if (x, y) is in the middle of it). -1 if there's nothing before.
+     */
+    public long previousSentence(List<String> lines, int x, int y) {
+        build(lines);
+        if (blankLines.get(y)) {
+            int paragraph = blankLines.previousClearBit(y);
+            if (paragraph == -1)
+                return -1;
+            long[] starts = getSentences(lines, paragraph).starts;
+            return starts[starts.length - 1];
+        }
+
+        long position = SearchEngine.position(y, x);
+        long[] starts = getSentences(lines, y).starts;
+        for (int i = starts.length - 1; i >= 0; i--)
+            if (starts[i] < position)
+                return starts[i];
+
+        int start = runStart(y) - 1;
+        return start >= 0 ? SearchEngine.position(start, 0) : -1;
+    }
+
+    private Sentences getSentences(List<String> lines, int y) {
+        int first = runStart(y);
+        int last = runEnd(y);
+
+        Sentences cached = sentences.get(first);
+        if (cached != null && cached.lines.length == last - first + 1) {
+            boolean same = true;
+            for (int i = 0; i < cached.lines.length && same; i++)
+                same = cached.lines[i] == lines.get(first + i);
+            if (same)
+                return cached;
+        }
+
+        String[] paragraph = lines.subList(first, last + 1).toArray(new String[0]);
+        Sentences found = new Sentences(paragraph, findSentences(paragraph, first));
+        sentences.put(first, found);
+        return found;
+    }
+
+    private static long[] findSentences(String[] paragraph, int firstLine) {
+        long[] starts = new long[4];
+        int count = 0;
+        boolean lookingForStart = true;
+        for (int y = 0; y < paragraph.length; y++) {
+            String line = paragraph[y];
+            for (int x = 0; x < line.length(); x++) {
+                char c = line.charAt(x);
+                if (lookingForStart) {
+                    if (Character.isWhitespace(c))
+                        continue;
+
+                    if (count == starts.length)
+                        starts = Arrays.copyOf(starts, count * 2);
+                    starts[count++] = SearchEngine.position(firstLine + y, x);
+                    lookingForStart = false;
+                }
+
+                if (SENTENCE_ENDS.indexOf(c) != -1) {
+                    int end = x + 1;
+                    while (end < line.length() && CLOSING_CHARACTERS.indexOf(line.charAt(end)) != -1)
+                        end++;
+                    if (end == line.length() || Character.isWhitespace(line.charAt(end))) {
+                        lookingForStart = true;
+                        x = end - 1;
+                    }
+                }
+            }
+        }
+
+        return Arrays.copyOf(starts, count);
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.*;
+
+/**
+ * Text that was yanked or deleted, see {@link Registers}. <br>
+ * <br>
+ * A register keeps the lines it was made from as they are. Lines are
+ * immutable Strings, so the ones in the middle of a yank are the same objects
+ * as in the content and nothing gets copied, only the first and last line of
+ * a characterwise range are cut down with substring. The text is only joined
+ * into one String if something asks for it (the system clipboard).
+ */
+public class Register {
+    private final String[] lines;
+    private final boolean linewise; // Whole lines, they're put above or below the cursor's line
+
+    public Register(List<String> lines, boolean linewise) {
+        this.lines = lines.toArray(new String[0]);
+        this.linewise = linewise;
+    }
+
+    /**
+     * The text {@code range} covers in {@code content}.
+     */
+    public static Register of(TextRange range, List<String> content) {
+        if (range.isLinewise())
+            return new Register(content.subList(range.getStartY(), range.getEndY() + 1), true);
+
+        int startY = range.getStartY();
+        int endY = range.getEndY();
+        String[] lines = content.subList(startY, endY + 1).toArray(new String[0]);
+        if (startY == endY) {
+            lines[0] = lines[0].substring(range.getStartX(), range.getEndX());
+        } else {
+            lines[0] = lines[0].substring(range.getStartX());
+            lines[lines.length - 1] = lines[lines.length - 1].substring(0, range.getEndX());
+        }
+        return new Register(Arrays.asList(lines), false);
+    }
+
+    /**
+     * Text from outside the editor. It's linewise if it ends with a \n, like
+     * what {@link #getText()} gives.
+     */
+    public static Register fromText(String text) {
+        boolean linewise = text.endsWith("\n");
+        if (linewise)
+            text = text.substring(0, text.length() - 1);
+
+        return new Register(Arrays.asList(text.split("\n", -1)), linewise);
+    }
+
+    public List<String> getLines() {
+        return Collections.unmodifiableList(Arrays.asList(lines));
+    }
+
+    public boolean isLinewise() {
+        return linewise;
+    }
+
+    /**
+     * The text with a \n between lines, and after the last one if it's
+     * linewise.
+     */
+    public String getText() {
+        String text = String.join("\n", lines);
+        return linewise ? text + "\n" : text;
+    }
+
+    /**
+     * This register with {@code other} added to the end ("Ay). Characterwise
+     * text carries on the last line, anything linewise makes the whole thing
+     * linewise, like in vim.
+     */
+    public Register append(Register other) {
+        List<String> joined = new ArrayList<>(lines.length + other.lines.length);
+        joined.addAll(Arrays.asList(lines));
+        if (!linewise && !other.linewise) {
+            int last = joined.size() - 1;
+            joined.set(last, joined.get(last) + other.lines[0]);
+            joined.addAll(Arrays.asList(other.lines).subList(1, other.lines.length));
+        } else {
+            joined.addAll(Arrays.asList(other.lines));
+        }
+
+        return new Register(joined, linewise || other.linewise);
+    }
+}
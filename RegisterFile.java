@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the named registers ("a to "z) between runs, like vim's viminfo, so
+ * recorded macros aren't gone when the editor closes. <br>
+ * <br>
+ * A macro is just register text in key notation (see {@link KeyStroke}), so
+ * nothing here needs to know which registers are macros. The file is read
+ * on a background thread as soon as the editor starts, and rewritten on that
+ * same thread whenever a register changes, so a read never sees the file
+ * from before a save that's still queued. {@link #flush()} waits for the
+ * saves when the editor closes. <br>
+ * <br>
+ * Layout: magic, version, register count, then for each register its name,
+ * whether it's linewise, its line count and the lines as length prefixed
+ * UTF-8.
+ */
+public class RegisterFile {
+    private static final String FILE_NAME = "registers.bin";
+
+    private static final int MAGIC = 0x564d5247; // "VMRG"
+    private static final int VERSION = 1;
+    private static final int MAX_LINES = 1000; // Bigger registers aren't kept, like vim's viminfo <
+
+    // One thread so the writes land in the order they were made, and reads
+    // come after them
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RegisterFile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private Future<Register[]> loading; // null until load() or preload()
+
+    public RegisterFile() {
+        this(new File(FILE_NAME));
+    }
+
+    public RegisterFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts reading the registers in the background, so {@link #load()}
+     * doesn't have to wait for the disk when they're first used.
+     */
+    public void preload() {
+        if (loading == null)
+            loading = executor.submit(this::read);
+    }
+
+    /**
+     * The registers, "a at index 0, once any saves still waiting have been
+     * written. Anything that couldn't be read is left empty. Only waits if
+     * the read from {@link #preload()} hasn't finished yet.
+     */
+    public Register[] load() {
+        preload();
+        try {
+            return loading.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Unable to read saved registers: " + e.getMessage());
+            return new Register[26];
+        }
+    }
+
+    /**
+     * Waits for every save that's still queued to be written. The thread
+     * that writes them doesn't keep the program open, so this is called on
+     * exit.
+     */
+    public static void flush() {
+        try {
+            executor.submit(() -> {
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Unable to save registers: " + e.getMessage());
+        }
+    }
+
+    private Register[] read() {
+        Register[] registers = new Register[26];
+        if (!file.exists())
+            return registers;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Ignoring saved registers, they're from a different version");
+                return registers;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                char name = in.readChar();
+                boolean linewise = in.readBoolean();
+                int lineCount = in.readInt();
+                List<String> lines = new ArrayList<>(lineCount);
+                for (int j = 0; j < lineCount; j++) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    lines.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+
+                if (name >= 'a' && name <= 'z')
+                    registers[name - 'a'] = new Register(lines, linewise);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read saved registers: " + e.getMessage());
+        }
+        return registers;
+    }
+
+    /**
+     * Writes {@code registers} ("a at index 0) in the background. Registers
+     * never change once made, so copying the array is enough of a snapshot.
+     */
+    public void save(Register[] registers) {
+        Register[] snapshot = registers.clone();
+        executor.execute(() -> write(snapshot));
+    }
+
+    private void write(Register[] registers) {
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < registers.length; i++)
+            if (registers[i] != null && registers[i].getLines().size() <= MAX_LINES)
+                kept.add(i);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(kept.size());
+            for (int i : kept) {
+                out.writeChar('a' + i);
+                out.writeBoolean(registers[i].isLinewise());
+                List<String> lines = registers[i].getLines();
+                out.writeInt(lines.size());
+                for (String line : lines) {
+                    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to save registers: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Unable to save registers: " + e.getMessage());
+        }
+    }
+}
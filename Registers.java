@@ -0,0 +1,162 @@
+import java.util.*;
+
+/**
+ * Vim's registers, what "ay, "ap etc. read and write. <br>
+ * <br>
+ * Everything is kept here in memory as {@link Register}s: <br>
+ * "" the unnamed register, whatever was yanked or deleted last <br>
+ * "a to "z, "A to "Z appends to the lowercase one <br>
+ * "0 the last yank, "1 to "9 the last deletes that took more than part of a
+ * line (each one pushes the others down), "- the last one within a line <br>
+ * ". the text typed in the last insert <br>
+ * "_ throws away whatever is put in it <br>
+ * <br>
+ * Only "+ and "* go to the system clipboard, and only when they're asked for.
+ * They go through the {@link ClipboardBridge} so they never wait on it. <br>
+ * <br>
+ * Macros (qa) are recorded into the named registers as text in key notation,
+ * so "ap shows one and "ay$ changes it. The named registers are saved with
+ * {@link RegisterFile}, which starts reading them back as soon as this is made.
+ */
+public class Registers {
+    private static final String NAMES = "\"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-._+*";
+
+    private Register[] named; // null until one is first used
+    private final Register[] numbered = new Register[10];
+    private Register unnamed;
+    private Register smallDelete;
+    private Register inserted;
+    private ClipboardBridge clipboard; // null until "+ or "* is used
+    private final RegisterFile file;
+
+    public Registers() {
+        this(new RegisterFile());
+    }
+
+    public Registers(RegisterFile file) {
+        this.file = file;
+        file.preload();
+    }
+
+    public static boolean isValid(char name) {
+        return NAMES.indexOf(name) != -1;
+    }
+
+    private static boolean isClipboard(char name) {
+        return name == '+' || name == '*';
+    }
+
+    /**
+     * What's in register {@code name} (0 for the unnamed one), or null if
+     * it's empty.
+     */
+    public Register get(char name) {
+        if (name == 0 || name == '"')
+            return unnamed;
+        if (Character.isLetter(name))
+            return getNamed()[Character.toLowerCase(name) - 'a'];
+        if (Character.isDigit(name))
+            return numbered[name - '0'];
+        if (isClipboard(name))
+            return getClipboard().get();
+
+        switch (name) {
+            case '-':
+                return smallDelete;
+            case '.':
+                return inserted;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Stores yanked text in {@code name}, or "0 if no register was given.
+     */
+    public void yank(char name, Register register) {
+        if (name == 0 || name == '"') {
+            numbered[0] = register;
+            unnamed = register;
+            return;
+        }
+
+        store(name, register);
+    }
+
+    /**
+     * Stores deleted text in {@code name}, or "1 (or "- if it was within one
+     * line) if no register was given.
+     */
+    public void delete(char name, Register register) {
+        if (name != 0 && name != '"') {
+            store(name, register);
+            return;
+        }
+
+        if (register.isLinewise() || register.getLines().size() > 1) {
+            System.arraycopy(numbered, 1, numbered, 2, numbered.length - 2);
+            numbered[1] = register;
+        } else {
+            smallDelete = register;
+        }
+        unnamed = register;
+    }
+
+    /**
+     * Stores a recorded macro (qa, qA appends). Unlike a yank it leaves ""
+     * alone.
+     */
+    public void record(char name, Register macro) {
+        if (Character.isLetterOrDigit(name))
+            put(name, macro);
+    }
+
+    private void store(char name, Register register) {
+        register = put(name, register);
+        if (register != null)
+            unnamed = register;
+    }
+
+    // Puts register in name, returns what name holds now or null if it can't be written
+    private Register put(char name, Register register) {
+        if (name == '_')
+            return null;
+
+        if (Character.isLetter(name)) {
+            Register[] named = getNamed();
+            int index = Character.toLowerCase(name) - 'a';
+            if (Character.isUpperCase(name) && named[index] != null)
+                register = named[index].append(register);
+            named[index] = register;
+            file.save(named);
+        } else if (Character.isDigit(name)) {
+            numbered[name - '0'] = register;
+        } else if (isClipboard(name)) {
+            getClipboard().set(register);
+        } else if (name == '-') {
+            smallDelete = register;
+        } else {
+            return null; // ". can only be read
+        }
+        return register;
+    }
+
+    private Register[] getNamed() {
+        if (named == null)
+            named = file.load();
+        return named;
+    }
+
+    private ClipboardBridge getClipboard() {
+        if (clipboard == null)
+            clipboard = ClipboardBridge.getInstance();
+        return clipboard;
+    }
+
+    /**
+     * Called when insert mode ends with what was typed in it, for ".
+     */
+    public void setInserted(String text) {
+        inserted = text.isEmpty() ? null : new Register(Arrays.asList(text.split("\n", -1)), false);
+    }
+}
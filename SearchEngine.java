@@ -0,0 +1,568 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Literal text search over the lines of the content using
+ * Boyer-Moore-Horspool. <br>
+ * <br>
+ * Matches are read straight out of the line strings, nothing gets copied.
+ * Positions are packed into a long as (line << 32 | column), see
+ * {@link #position(int, int)}. <br>
+ * <br>
+ * Finding every match splits big documents into chunks of lines that get
+ * searched in parallel on the common fork-join pool. <br>
+ * <br>
+ * Patterns starting with \v ("very magic") are regular expressions instead.
+ * Compiled patterns are kept in a small LRU cache, and regex searches have a
+ * time budget (see {@link #startTimer()}) so catastrophic backtracking throws
+ * a {@link TimeoutException} instead of freezing the game loop.
+ */
+public class SearchEngine {
+    // Documents (and chunks) smaller than this are searched on one thread
+    private static final int CHUNK_LINES = 4096;
+
+    private static final int PATTERN_CACHE_SIZE = 32;
+    private static final long TIME_BUDGET_NANOS = 500_000_000L;
+
+    // Most recently used compiled patterns, so n and retyping a search are free
+    private static final LinkedHashMap<String, Pattern> patternCache = new LinkedHashMap<String, Pattern>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PATTERN_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Thrown when a regex search takes longer than its time budget.
+     */
+    public static class TimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public TimeoutException(String pattern) {
+            super("Search timed out: " + pattern);
+        }
+    }
+
+    private final String pattern;
+    private final boolean wholeWord;
+    private final boolean ignoreCase;
+
+    private final Pattern regex; // null for literal searches
+    private String error = null; // set if the regex doesn't compile
+    private volatile long deadline = 0; // System.nanoTime() regex searches must finish by, 0 for none
+
+    // How far the pattern can be shifted when the char lined up with its last
+    // char is c. Chars are bucketed by their low byte, which only ever makes the
+    // shift smaller (never wrong).
+    private final int[] shifts = new int[256];
+
+    // Blocks of lines that might have a match, from a TrigramIndex. null to
+    // search every line.
+    private volatile BitSet candidateBlocks = null;
+    private int blockLines = 1;
+
+    public SearchEngine(String pattern) {
+        this(pattern, false);
+    }
+
+    /**
+     * @param wholeWord only match if the pattern isn't surrounded by letters,
+     *                  digits or underscores (what * does)
+     */
+    public SearchEngine(String pattern, boolean wholeWord) {
+        this(pattern, wholeWord, false);
+    }
+
+    /**
+     * @param ignoreCase match regardless of case (the i flag of :s). Literal
+     *                   patterns go through the regex engine for this.
+     */
+    public SearchEngine(String pattern, boolean wholeWord, boolean ignoreCase) {
+        this.pattern = pattern;
+        this.wholeWord = wholeWord;
+        this.ignoreCase = ignoreCase;
+
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+        if (pattern.startsWith("\\v"))
+            regex = compile(pattern.substring(2), flags);
+        else if (ignoreCase)
+            regex = compile(Pattern.quote(pattern), flags);
+        else
+            regex = null;
+
+        int length = pattern.length();
+        for (int i = 0; i < shifts.length; i++)
+            shifts[i] = length;
+        for (int i = 0; i < length - 1; i++)
+            shifts[pattern.charAt(i) & 0xFF] = length - 1 - i;
+    }
+
+    private Pattern compile(String regex, int flags) {
+        String key = flags + "/" + regex;
+        synchronized (patternCache) {
+            Pattern compiled = patternCache.get(key);
+            if (compiled != null)
+                return compiled;
+
+            try {
+                compiled = Pattern.compile(regex, flags);
+            } catch (PatternSyntaxException e) {
+                // Matches nothing, which is what you want while still typing it
+                error = "E54: Invalid pattern: " + e.getDescription();
+                return Pattern.compile("(?!)");
+            }
+
+            patternCache.put(key, compiled);
+            return compiled;
+        }
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean isRegex() {
+        return pattern.startsWith("\\v");
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Returns why the pattern is invalid, or null if it's fine.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Starts the time budget for a regex search. Everything after this throws a
+     * {@link TimeoutException} once the budget runs out, until it's called
+     * again.
+     */
+    public void startTimer() {
+        deadline = System.nanoTime() + TIME_BUDGET_NANOS;
+    }
+
+    /**
+     * Only search the blocks of {@code blockLines} lines set in
+     * {@code candidateBlocks} (see {@link TrigramIndex#candidates(SearchEngine)}),
+     * or every line if it's null. Has to be cleared as soon as the content
+     * changes.
+     */
+    public void setCandidateBlocks(BitSet candidateBlocks, int blockLines) {
+        this.blockLines = blockLines;
+        this.candidateBlocks = candidateBlocks;
+    }
+
+    /**
+     * Returns false if {@code line} can't have a match.
+     */
+    public boolean isCandidate(int line) {
+        BitSet candidateBlocks = this.candidateBlocks;
+        return candidateBlocks == null || candidateBlocks.get(line / blockLines);
+    }
+
+    public boolean isWholeWord() {
+        return wholeWord;
+    }
+
+    public static long position(int line, int column) {
+        return ((long) line << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    public static int line(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static int column(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Returns the index of the first match in {@code line} at or after
+     * {@code from}, or -1.
+     */
+    public int indexOf(String line, int from) {
+        if (regex != null)
+            return regexIndexOf(line, from);
+
+        int length = pattern.length();
+        if (length == 0)
+            return -1;
+
+        int last = length - 1;
+        int limit = line.length() - length;
+        int i = Math.max(from, 0);
+        while (i <= limit) {
+            char c = line.charAt(i + last);
+            if (c == pattern.charAt(last) && matchesAt(line, i) && isWordMatch(line, i, i + length))
+                return i;
+
+            i += shifts[c & 0xFF];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last match in {@code line} that starts at or
+     * before {@code from}, or -1.
+     */
+    public int lastIndexOf(String line, int from) {
+        int found = -1;
+        int index = indexOf(line, 0);
+        while (index != -1 && index <= from) {
+            found = index;
+            index = indexOf(line, index + 1);
+        }
+
+        return found;
+    }
+
+    private boolean matchesAt(String line, int start) {
+        for (int i = 0; i < pattern.length() - 1; i++)
+            if (line.charAt(start + i) != pattern.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private int regexIndexOf(String line, int from) {
+        if (from > line.length())
+            return -1;
+
+        Matcher matcher = regex.matcher(deadline == 0 ? line : new TimedCharSequence(line, deadline, pattern));
+        int i = Math.max(from, 0);
+        while (i <= line.length() && matcher.find(i)) {
+            if (isWordMatch(line, matcher.start(), matcher.end()))
+                return matcher.start();
+            i = matcher.start() + 1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns how long the match starting at {@code index} is.
+     */
+    public int matchLength(String line, int index) {
+        if (regex == null)
+            return pattern.length();
+
+        Matcher matcher = regex.matcher(deadline == 0 ? line : new TimedCharSequence(line, deadline, pattern));
+        matcher.region(index, line.length());
+        return matcher.lookingAt() ? matcher.end() - index : 0;
+    }
+
+    /**
+     * Returns where to look for the match after the one at {@code index}.
+     * Regex matches don't overlap (so \\d+ on "123" is one match, not three).
+     */
+    public int nextSearchStart(String line, int index) {
+        if (regex == null)
+            return index + 1;
+
+        return index + Math.max(1, matchLength(line, index));
+    }
+
+    /**
+     * Appends {@code line} to {@code out} with matches swapped for
+     * {@code replacement}, and returns how many were replaced. Only the first
+     * match is replaced unless {@code global} is set. <br>
+     * <br>
+     * Like vim, & (or \\0) in the replacement is the whole match, \\1 to \\9
+     * are the groups of a regex, and a backslash makes the next character
+     * literal.
+     */
+    public int replace(String line, String replacement, boolean global, StringBuilder out) {
+        Matcher matcher = regex == null ? null
+                : regex.matcher(deadline == 0 ? line : new TimedCharSequence(line, deadline, pattern));
+
+        int replaced = 0;
+        int copied = 0; // Everything before this is already in out
+        int from = 0;
+        while (from <= line.length()) {
+            int start, end;
+            if (matcher == null) {
+                start = indexOf(line, from);
+                end = start + pattern.length();
+            } else if (matcher.find(from)) {
+                start = matcher.start();
+                end = matcher.end();
+                if (!isWordMatch(line, start, end)) {
+                    from = start + 1;
+                    continue;
+                }
+            } else {
+                start = -1;
+                end = -1;
+            }
+            if (start == -1)
+                break;
+
+            out.append(line, copied, start);
+            appendReplacement(line, start, end, matcher, replacement, out);
+            copied = end;
+            replaced++;
+
+            if (!global)
+                break;
+            // Empty matches would match in the same place forever
+            from = end == start ? end + 1 : end;
+        }
+
+        out.append(line, copied, line.length());
+        return replaced;
+    }
+
+    private static void appendReplacement(String line, int start, int end, Matcher matcher, String replacement,
+            StringBuilder out) {
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '&') {
+                out.append(line, start, end);
+            } else if (c == '\\' && i + 1 < replacement.length()) {
+                char next = replacement.charAt(++i);
+                if (next >= '0' && next <= '9') {
+                    int group = next - '0';
+                    if (group == 0)
+                        out.append(line, start, end);
+                    else if (matcher != null && group <= matcher.groupCount() && matcher.start(group) != -1)
+                        out.append(line, matcher.start(group), matcher.end(group));
+                } else if (next == 't') {
+                    out.append('\t');
+                } else {
+                    out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private boolean isWordMatch(String line, int start, int end) {
+        if (!wholeWord)
+            return true;
+
+        return (start == 0 || !isWordChar(line.charAt(start - 1)))
+                && (end == line.length() || !isWordChar(line.charAt(end)));
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Returns the position of the first match after (x, y), wrapping around the
+     * end of the content, or -1 if there isn't one.
+     */
+    public long findNext(List<String> lines, int x, int y) {
+        startTimer();
+        int size = lines.size();
+        for (int i = 0; i <= size; i++) {
+            int line = (y + i) % size;
+
+            // The first line is searched after the cursor, and once more at the
+            // end (before the cursor) when wrapping around
+            if (!isCandidate(line))
+                continue;
+
+            int from = i == 0 ? x + 1 : 0;
+            int index = indexOf(lines.get(line), from);
+            if (index != -1)
+                return position(line, index);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first match before (x, y), wrapping around the
+     * start of the content, or -1 if there isn't one.
+     */
+    public long findPrevious(List<String> lines, int x, int y) {
+        startTimer();
+        int size = lines.size();
+        for (int i = 0; i <= size; i++) {
+            int line = ((y - i) % size + size) % size;
+
+            if (!isCandidate(line))
+                continue;
+
+            int from = i == 0 ? x - 1 : Integer.MAX_VALUE;
+            int index = lastIndexOf(lines.get(line), from);
+            if (index != -1)
+                return position(line, index);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Counts every match in {@code lines}. If {@code before} isn't -1, the
+     * number of matches at or before that position is stored in
+     * {@code counts[1]}; the total goes in {@code counts[0]}.
+     */
+    public void count(List<String> lines, long before, int[] counts) {
+        long[] matches = findAll(lines);
+        counts[0] = matches.length;
+        counts[1] = before == -1 ? 0 : upperBound(matches, before);
+    }
+
+    // Number of positions in the sorted array that are <= position
+    private static int upperBound(long[] positions, long position) {
+        int low = 0;
+        int high = positions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions[middle] <= position)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the position of every match in {@code lines}, sorted. Nothing may
+     * modify {@code lines} while this runs.
+     */
+    public long[] findAll(List<String> lines) {
+        return findAll(lines, 0, lines.size());
+    }
+
+    /**
+     * Same as {@link #findAll(List)} but only for lines [from, to).
+     */
+    public long[] findAll(List<String> lines, int from, int to) {
+        startTimer();
+        if (to - from <= CHUNK_LINES)
+            return scan(lines, from, to);
+
+        long[][] chunks = new long[(to - from + CHUNK_LINES - 1) / CHUNK_LINES][];
+        ForkJoinPool.commonPool().invoke(new FindAllTask(lines, chunks, from, to, 0, chunks.length));
+
+        // The chunks are in line order, so putting them end to end keeps it sorted
+        int total = 0;
+        for (long[] chunk : chunks)
+            total += chunk.length;
+
+        long[] matches = new long[total];
+        int position = 0;
+        for (long[] chunk : chunks) {
+            System.arraycopy(chunk, 0, matches, position, chunk.length);
+            position += chunk.length;
+        }
+        return matches;
+    }
+
+    private long[] scan(List<String> lines, int from, int to) {
+        BitSet candidateBlocks = this.candidateBlocks;
+        long[] matches = new long[16];
+        int count = 0;
+        for (int y = from; y < to; y++) {
+            // Jump straight to the next block that might have a match
+            if (candidateBlocks != null && !candidateBlocks.get(y / blockLines)) {
+                int block = candidateBlocks.nextSetBit(y / blockLines);
+                if (block == -1)
+                    break;
+                y = block * blockLines;
+                if (y >= to)
+                    break;
+            }
+
+            String line = lines.get(y);
+            int index = indexOf(line, 0);
+            while (index != -1) {
+                if (count == matches.length)
+                    matches = Arrays.copyOf(matches, count * 2);
+                matches[count++] = position(y, index);
+                index = indexOf(line, nextSearchStart(line, index));
+            }
+        }
+
+        return Arrays.copyOf(matches, count);
+    }
+
+    // Splits the chunks in half until there's one left, then searches it
+    private class FindAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> lines;
+        private final long[][] chunks;
+        private final int firstLine, lastLine; // lines being searched
+        private final int from, to; // chunks this task is responsible for
+
+        private FindAllTask(List<String> lines, long[][] chunks, int firstLine, int lastLine, int from, int to) {
+            this.lines = lines;
+            this.chunks = chunks;
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                int start = firstLine + from * CHUNK_LINES;
+                chunks[from] = scan(lines, start, Math.min(start + CHUNK_LINES, lastLine));
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new FindAllTask(lines, chunks, firstLine, lastLine, from, middle),
+                    new FindAllTask(lines, chunks, firstLine, lastLine, middle, to));
+        }
+    }
+
+    /**
+     * Hands a line to the regex engine and checks the clock every so often
+     * while it reads it. Backtracking means lots of reads, so a runaway pattern
+     * gets stopped quickly.
+     */
+    private static class TimedCharSequence implements CharSequence {
+        private static final int CHECK_INTERVAL = 4096;
+
+        private final String line;
+        private final long deadline;
+        private final String pattern;
+        private int reads = 0;
+
+        private TimedCharSequence(String line, long deadline, String pattern) {
+            this.line = line;
+            this.deadline = deadline;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads == CHECK_INTERVAL) {
+                reads = 0;
+                if (System.nanoTime() > deadline)
+                    throw new TimeoutException(pattern);
+            }
+            return line.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return line.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return line.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return line;
+        }
+    }
+}
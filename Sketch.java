@@ -94,5 +94,6 @@ class Sketch extends Applet {
         properties.put("frameWidth", Integer.toString(width));
         properties.put("frameHeight", Integer.toString(height));
         saveProperties(properties, "settings.properties");
+        RegisterFile.flush();
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+import java.util.*;
+
+/**
+ * The :s/pattern/replacement/flags command. <br>
+ * <br>
+ * Every replacement is worked out first (one StringBuilder pass per line) and
+ * only then written into the content, so a substitution that times out or
+ * fails halfway leaves the content alone. The changed lines are swapped in
+ * with set(), which doesn't shift anything, and keyPressed turns the whole
+ * thing into one undo entry.
+ */
+public class Substitution {
+    private final SearchEngine engine;
+    private final String replacement;
+    private final boolean global; // g, replace every match instead of the first one in each line
+    private final boolean countOnly; // n, only count the matches
+
+    private int substitutions = 0;
+    private int linesChanged = 0;
+    private int lastLine = -1;
+
+    public Substitution(SearchEngine engine, String replacement, boolean global, boolean countOnly) {
+        this.engine = engine;
+        this.replacement = replacement;
+        this.global = global;
+        this.countOnly = countOnly;
+    }
+
+    /**
+     * Splits "pattern/replacement/flags" (with / being whatever
+     * {@code delimiter} is) into {@code count} parts. A backslash before the
+     * delimiter escapes it, other backslashes are left for the pattern and the
+     * replacement to deal with. The last part gets the rest of the command as
+     * is, and missing parts come back empty.
+     */
+    public static String[] split(String command, char delimiter, int count) {
+        String[] parts = new String[count];
+        Arrays.fill(parts, "");
+        StringBuilder part = new StringBuilder();
+        int index = 0;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (index == count - 1) {
+                part.append(command, i, command.length());
+                break;
+            }
+
+            if (c == '\\' && i + 1 < command.length() && command.charAt(i + 1) == delimiter) {
+                part.append(delimiter);
+                i++;
+            } else if (c == delimiter) {
+                parts[index++] = part.toString();
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+
+        parts[index] = part.toString();
+        return parts;
+    }
+
+    public SearchEngine getEngine() {
+        return engine;
+    }
+
+    public int getSubstitutions() {
+        return substitutions;
+    }
+
+    public int getLinesChanged() {
+        return linesChanged;
+    }
+
+    /**
+     * Returns the last line that had a match, or -1.
+     */
+    public int getLastLine() {
+        return lastLine;
+    }
+
+    /**
+     * Substitutes lines [from, to] of {@code lines}. Returns true if anything
+     * matched.
+     */
+    public boolean apply(List<String> lines, int from, int to) {
+        BitSet marked = new BitSet(to + 1);
+        marked.set(from, to + 1);
+        return apply(lines, marked);
+    }
+
+    /**
+     * Substitutes every line of {@code lines} that's set in {@code marked}
+     * (what :g/pattern/s does). Returns true if anything matched.
+     */
+    public boolean apply(List<String> lines, BitSet marked) {
+        engine.startTimer();
+
+        int[] changedLines = new int[16];
+        String[] changed = new String[16];
+        StringBuilder builder = new StringBuilder();
+        for (int y = marked.nextSetBit(0); y != -1 && y < lines.size(); y = marked.nextSetBit(y + 1)) {
+            if (!engine.isCandidate(y))
+                continue;
+
+            builder.setLength(0);
+            int replaced = engine.replace(lines.get(y), replacement, global, builder);
+            if (replaced == 0)
+                continue;
+
+            if (linesChanged == changed.length) {
+                changedLines = Arrays.copyOf(changedLines, linesChanged * 2);
+                changed = Arrays.copyOf(changed, linesChanged * 2);
+            }
+            changedLines[linesChanged] = y;
+            changed[linesChanged] = countOnly ? null : builder.toString();
+            linesChanged++;
+            substitutions += replaced;
+            lastLine = y;
+        }
+
+        if (!countOnly)
+            for (int i = 0; i < linesChanged; i++)
+                lines.set(changedLines[i], changed[i]);
+
+        return linesChanged > 0;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.*;
+
+/**
+ * The text an operator (d, c, y) works on, worked out from where a motion or
+ * text object starts and ends. <br>
+ * <br>
+ * Characterwise ranges go from (startX, startY) up to but not including
+ * (endX, endY), so they can cross lines. Linewise ranges are every line from
+ * startY to endY (dd, dj, dip). Motions that include the character they land
+ * on (e, $, f) are turned into the exclusive form when the range is made, so
+ * the operators don't need to know which motion made it. <br>
+ * <br>
+ * Deleting only touches the first and last line of the range and removes the
+ * ones in between with a single subList().clear().
+ */
+public class TextRange {
+    private final int startX, startY, endX, endY;
+    private final boolean linewise;
+
+    private TextRange(int startX, int startY, int endX, int endY, boolean linewise) {
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+        this.linewise = linewise;
+    }
+
+    /**
+     * The characters between (x1, y1) and (x2, y2), in either order. If
+     * {@code inclusive} the character at whichever is later is part of the
+     * range too.
+     */
+    public static TextRange characters(int x1, int y1, int x2, int y2, boolean inclusive, List<String> lines) {
+        if (y2 < y1 || (y2 == y1 && x2 < x1))
+            return characters(x2, y2, x1, y1, inclusive, lines);
+
+        int startX = Math.min(x1, lines.get(y1).length());
+        int endX = Math.min(inclusive ? x2 + 1 : x2, lines.get(y2).length());
+        return new TextRange(startX, y1, endX, y2, false);
+    }
+
+    /**
+     * Every line from y1 to y2, in either order.
+     */
+    public static TextRange lines(int y1, int y2) {
+        return new TextRange(0, Math.min(y1, y2), 0, Math.max(y1, y2), true);
+    }
+
+    public int getStartX() {
+        return startX;
+    }
+
+    public int getStartY() {
+        return startY;
+    }
+
+    public int getEndX() {
+        return endX;
+    }
+
+    public int getEndY() {
+        return endY;
+    }
+
+    public boolean isLinewise() {
+        return linewise;
+    }
+
+    public boolean isEmpty() {
+        return !linewise && startY == endY && startX == endX;
+    }
+
+    /**
+     * Removes the range from {@code lines}. What's left of the first and last
+     * line is joined into one. There's always at least one line left, even if
+     * it's empty.
+     */
+    public void delete(List<String> lines) {
+        if (linewise) {
+            lines.subList(startY, endY + 1).clear();
+            if (lines.isEmpty())
+                lines.add("");
+            return;
+        }
+
+        String joined = lines.get(startY).substring(0, startX) + lines.get(endY).substring(endX);
+        lines.subList(startY + 1, endY + 1).clear();
+        lines.set(startY, joined);
+    }
+}
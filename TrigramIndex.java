@@ -0,0 +1,314 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Which blocks of lines in a big file contain which trigrams (runs of three
+ * characters), so searches can skip every block that can't possibly match.
+ * <br>
+ * <br>
+ * Trigrams are hashed into buckets and every block of lines gets one bit per
+ * bucket. A search for "timeout" only has to look at blocks that have the
+ * bits for "tim", "ime", "meo", "eou" and "out" all set. Regex searches use
+ * the literal runs that every match has to contain (see
+ * {@link #requiredLiterals(String)}). <br>
+ * <br>
+ * Only files over {@link #MIN_FILE_SIZE} get an index. It's built on a
+ * background thread from the content right after it's loaded, and saved next
+ * to the file (.name.trigrams) so the next time that file is opened it's just
+ * mapped back in. The saved index is thrown away if the file's size or last
+ * modified time changed. <br>
+ * <br>
+ * Layout: magic, version, file length, file last modified, line count, lines
+ * per block, buckets, then one bitset of buckets per block.
+ */
+public class TrigramIndex {
+    public static final long MIN_FILE_SIZE = 8 * 1024 * 1024;
+    public static final int BLOCK_LINES = 1024;
+
+    private static final int BUCKET_BITS = 15;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int WORDS_PER_BLOCK = BUCKETS / 64;
+
+    private static final int MAGIC = 0x54524947; // "TRIG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    // One thread shared by every editor
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Trigram index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private volatile LongBuffer bits; // null until it's loaded or built
+    private int blocks;
+
+    private TrigramIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts loading (or building) the index for {@code file}, whose lines are
+     * {@code lines}. Returns null if the file is too small to bother.
+     */
+    public static TrigramIndex open(File file, List<String> lines) {
+        if (file.length() < MIN_FILE_SIZE)
+            return null;
+
+        TrigramIndex index = new TrigramIndex(file);
+        List<String> snapshot = new ArrayList<>(lines);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        executor.execute(() -> index.load(snapshot, length, lastModified));
+        return index;
+    }
+
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    private void load(List<String> lines, long length, long lastModified) {
+        File image = new File(file.getParentFile(), "." + file.getName() + ".trigrams");
+        int blocks = (lines.size() + BLOCK_LINES - 1) / BLOCK_LINES;
+
+        try {
+            if (!isUpToDate(image, length, lastModified, lines.size()))
+                save(build(lines, blocks), image, length, lastModified, lines.size());
+
+            try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped.position(HEADER_SIZE);
+                this.blocks = blocks;
+                bits = mapped.slice().asLongBuffer();
+            }
+        } catch (IOException e) {
+            // Can't write next to the file, so keep it on the heap
+            System.out.println("Unable to save trigram index: " + e.getMessage());
+            this.blocks = blocks;
+            bits = LongBuffer.wrap(build(lines, blocks));
+        }
+    }
+
+    private static boolean isUpToDate(File image, long length, long lastModified, int lineCount) {
+        if (!image.exists())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(image))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == length
+                    && in.readLong() == lastModified && in.readInt() == lineCount && in.readInt() == BLOCK_LINES
+                    && in.readInt() == BUCKETS;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void save(long[] bits, File image, long length, long lastModified, int lineCount)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(length);
+        buffer.putLong(lastModified);
+        buffer.putInt(lineCount);
+        buffer.putInt(BLOCK_LINES);
+        buffer.putInt(BUCKETS);
+        buffer.asLongBuffer().put(bits);
+        buffer.rewind();
+
+        File temp = new File(image.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        Files.move(temp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long[] build(List<String> lines, int blocks) {
+        long[] bits = new long[blocks * WORDS_PER_BLOCK];
+        for (int y = 0; y < lines.size(); y++) {
+            String line = lines.get(y);
+            int offset = (y / BLOCK_LINES) * WORDS_PER_BLOCK;
+            for (int i = 0; i + 3 <= line.length(); i++) {
+                int bucket = bucket(line.charAt(i), line.charAt(i + 1), line.charAt(i + 2));
+                bits[offset + (bucket >>> 6)] |= 1L << bucket;
+            }
+        }
+
+        return bits;
+    }
+
+    private static int bucket(char a, char b, char c) {
+        return (((a * 31 + b) * 31 + c) * 0x9E3779B1) >>> (32 - BUCKET_BITS);
+    }
+
+    /**
+     * Returns the blocks (of {@link #BLOCK_LINES} lines) that might have a match
+     * for {@code engine}, or null if the index can't narrow it down (short or
+     * case insensitive patterns, regexes without a long enough literal...).
+     */
+    public BitSet candidates(SearchEngine engine) {
+        if (engine.isIgnoreCase())
+            return null;
+
+        List<String> literals;
+        if (engine.isRegex())
+            literals = requiredLiterals(engine.getPattern().substring(2));
+        else
+            literals = Collections.singletonList(engine.getPattern());
+
+        // Every bucket a match has to hit
+        int[] required = new int[16];
+        int count = 0;
+        for (String literal : literals) {
+            for (int i = 0; i + 3 <= literal.length(); i++) {
+                if (count == required.length)
+                    required = Arrays.copyOf(required, count * 2);
+                required[count++] = bucket(literal.charAt(i), literal.charAt(i + 1), literal.charAt(i + 2));
+            }
+        }
+        if (count == 0)
+            return null;
+
+        LongBuffer bits = this.bits;
+        BitSet candidates = new BitSet(blocks);
+        for (int block = 0; block < blocks; block++) {
+            int offset = block * WORDS_PER_BLOCK;
+            boolean possible = true;
+            for (int i = 0; i < count && possible; i++)
+                possible = (bits.get(offset + (required[i] >>> 6)) & (1L << required[i])) != 0;
+            if (possible)
+                candidates.set(block);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Returns runs of plain characters that every match of {@code regex} has to
+     * contain. When in doubt a run is left out (which only makes the filter
+     * let more blocks through), so alternations, groups, inline flags and
+     * escapes that spell a character some other way (\x41, \Q..\E) give
+     * nothing at all.
+     */
+    public static List<String> requiredLiterals(String regex) {
+        List<String> literals = new ArrayList<>();
+        if (regex.contains("(?") || hasAlternation(regex) || hasEscapeWithArgument(regex))
+            return literals;
+
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\':
+                    // \. is a literal dot, \d, \w, \1 etc. aren't literals
+                    if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        run.append(regex.charAt(++i));
+                    } else {
+                        i++;
+                        endRun(run, literals);
+                    }
+                    break;
+                case '*':
+                case '?':
+                case '{':
+                    // The character before might not be there at all
+                    if (run.length() > 0)
+                        run.setLength(run.length() - 1);
+                    endRun(run, literals);
+                    if (c == '{')
+                        i = skipTo(regex, i, '}');
+                    break;
+                case '[':
+                    endRun(run, literals);
+                    i = skipTo(regex, i + 1, ']');
+                    break;
+                case '(':
+                    // Groups can be optional or repeated, so skip what's in them
+                    endRun(run, literals);
+                    i = skipGroup(regex, i);
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                case ')':
+                    endRun(run, literals);
+                    break;
+                default:
+                    run.append(c);
+            }
+        }
+        endRun(run, literals);
+
+        return literals;
+    }
+
+    private static void endRun(StringBuilder run, List<String> literals) {
+        if (run.length() >= 3)
+            literals.add(run.toString());
+        run.setLength(0);
+    }
+
+    private static boolean hasAlternation(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (regex.charAt(i) == '\\')
+                i++;
+            else if (regex.charAt(i) == '|')
+                return true;
+        }
+
+        return false;
+    }
+
+    // Escapes that take the characters after them (\x41, \0101, \cA, \p{L},
+    // \N{...}, \k<name>, \Q...\E and the unicode one), which can't be read as
+    // a literal run
+    private static boolean hasEscapeWithArgument(String regex) {
+        for (int i = 0; i + 1 < regex.length(); i++) {
+            if (regex.charAt(i) != '\\')
+                continue;
+
+            if ("xu0cpPNkQ".indexOf(regex.charAt(i + 1)) != -1)
+                return true;
+            i++;
+        }
+
+        return false;
+    }
+
+    // Index of the closing char, skipping escaped ones
+    private static int skipTo(String regex, int from, char close) {
+        for (int i = from; i < regex.length(); i++) {
+            if (regex.charAt(i) == '\\')
+                i++;
+            else if (regex.charAt(i) == close && (close != ']' || i > from))
+                return i;
+        }
+
+        return regex.length();
+    }
+
+    // Index of the ) that closes the group opened at start
+    private static int skipGroup(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '[')
+                i = skipTo(regex, i + 1, ']');
+            else if (c == '(')
+                depth++;
+            else if (c == ')' && --depth == 0)
+                return i;
+        }
+
+        return regex.length();
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Words the user has added or removed with :learn and :unlearn. <br>
+ * <br>
+ * Every change is a single line appended to a log ("+word" or "-word") so
+ * learning a word never rewrites a whole file. Once the log has collected
+ * enough redundant entries it gets compacted on a background thread. The
+ * original dictionary.txt is never touched.
+ */
+public class UserDictionary {
+    private static final String FILE_NAME = "userDictionary.txt";
+    // Don't bother compacting tiny logs
+    private static final int MIN_COMPACT_LENGTH = 64;
+
+    private final File file;
+
+    private final HashSet<String> learned = new HashSet<>();
+    private final HashSet<String> unlearned = new HashSet<>();
+
+    // Number of entries in the log file, used to decide when to compact
+    private int logLength = 0;
+    private boolean compacting = false;
+    // Entries appended while a compaction is writing its snapshot
+    private final ArrayList<String> pendingEntries = new ArrayList<>();
+
+    public UserDictionary() {
+        this(new File(FILE_NAME));
+    }
+
+    public UserDictionary(File file) {
+        this.file = file;
+        load();
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2)
+                    continue;
+
+                apply(line.charAt(0), line.substring(1));
+                logLength++;
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read user dictionary: " + e.getMessage());
+        }
+    }
+
+    private void apply(char operation, String word) {
+        if (operation == '+') {
+            learned.add(word);
+            unlearned.remove(word);
+        } else if (operation == '-') {
+            unlearned.add(word);
+            learned.remove(word);
+        }
+    }
+
+    public synchronized void learn(String word) {
+        if (learned.contains(word))
+            return;
+
+        apply('+', word);
+        append("+" + word);
+    }
+
+    public synchronized void unlearn(String word) {
+        if (unlearned.contains(word))
+            return;
+
+        apply('-', word);
+        append("-" + word);
+    }
+
+    public synchronized boolean isEmpty() {
+        return learned.isEmpty() && unlearned.isEmpty();
+    }
+
+    public synchronized boolean isLearned(String word) {
+        return learned.contains(word);
+    }
+
+    public synchronized boolean isUnlearned(String word) {
+        return unlearned.contains(word);
+    }
+
+    private void append(String entry) {
+        try (FileWriter writer = new FileWriter(file, true)) {
+            writer.write(entry + "\n");
+        } catch (IOException e) {
+            System.out.println("Unable to save user dictionary: " + e.getMessage());
+            return;
+        }
+
+        logLength++;
+        if (compacting)
+            pendingEntries.add(entry);
+        else if (logLength >= MIN_COMPACT_LENGTH && logLength > 2 * (learned.size() + unlearned.size()))
+            compactInBackground();
+    }
+
+    /**
+     * Rewrites the log so it only holds one entry per word. The snapshot is
+     * written to a temporary file without holding the lock; anything appended
+     * in the meantime is copied over right before the files are swapped.
+     */
+    private void compactInBackground() {
+        compacting = true;
+        ArrayList<String> snapshot = new ArrayList<>(learned.size() + unlearned.size());
+        for (String word : learned)
+            snapshot.add("+" + word);
+        for (String word : unlearned)
+            snapshot.add("-" + word);
+
+        Thread thread = new Thread(() -> {
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                Files.write(temp.toPath(), snapshot);
+                synchronized (this) {
+                    Files.write(temp.toPath(), pendingEntries, StandardOpenOption.APPEND);
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    logLength = snapshot.size() + pendingEntries.size();
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to compact user dictionary: " + e.getMessage());
+                temp.delete();
+            } finally {
+                synchronized (this) {
+                    pendingEntries.clear();
+                    compacting = false;
+                }
+            }
+        }, "UserDictionary compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,398 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every word in the content, with the lines it's on. <br>
+ * <br>
+ * Words are runs of letters or digits, split the same way the
+ * {@link LineTokenizer} splits them (see {@link LineTokenizer#classify(char)}).
+ * <br>
+ * <br>
+ * Lines are kept by an id that stays the same however many lines are added or
+ * removed above them, so a word's list never has to be renumbered. Every id
+ * has a label, and labels go up with the line number, so a word's ids are
+ * kept sorted by label and a line number is found again by a binary search
+ * over {@link #ids} (the ids in line order). Adding or removing lines only
+ * splices that array, like the content itself is spliced, and gives the new
+ * lines labels in the gap between their neighbours. When the gap is used up
+ * the labels of the lines around it are spread out again. <br>
+ * <br>
+ * Edits update the index in place: only the lines that changed are split
+ * into words again. The whole index is only built (on a background thread)
+ * when a file is opened. {@link #isReady()} is false until that's done and
+ * callers fall back to a normal search meanwhile. Edits made while it's
+ * building are kept and applied to the build when it's picked up.
+ */
+public class WordIndex {
+    private static final long LABEL_GAP = 1L << 32; // Between lines when the index is built
+    private static final long MIN_LABEL_GAP = 1L << 16; // Less than this and the labels around it get spread out again
+
+    // One thread shared by every editor, newer builds make older ones bail out
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Word index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Line ids sorted by their labels, without duplicates
+    private static class Lines {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        private void insert(int index, int id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        // Lines only ever get added in order while building, where a line's
+        // id is its number
+        private void append(int id) {
+            if (size > 0 && ids[size - 1] == id)
+                return;
+            insert(size, id);
+        }
+
+        private void removeAt(int index) {
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+        }
+    }
+
+    // What a background build produced
+    private static class Build {
+        private final int generation;
+        private final TreeMap<String, Lines> words;
+        private final int[] ids;
+        private final long[] labels;
+        private final int lineCount;
+
+        private Build(int generation, TreeMap<String, Lines> words, int[] ids, long[] labels, int lineCount) {
+            this.generation = generation;
+            this.words = words;
+            this.ids = ids;
+            this.labels = labels;
+            this.lineCount = lineCount;
+        }
+    }
+
+    // An edit made while the index was building, see update()
+    private static class Update {
+        private final List<String> oldLines;
+        private final List<String> newLines;
+        private final int start;
+
+        private Update(List<String> oldLines, List<String> newLines, int start) {
+            this.oldLines = oldLines;
+            this.newLines = newLines;
+            this.start = start;
+        }
+    }
+
+    private TreeMap<String, Lines> words; // null while building
+    private int[] ids; // The id of every line, in order
+    private int lineCount;
+    private long[] labels; // By id
+    private int nextId; // Ids below this have been handed out
+    private int[] freeIds = new int[16]; // Handed out before but their lines are gone
+    private int freeCount = 0;
+    private final List<Update> pendingUpdates = new ArrayList<>(); // Made since the build's snapshot, in order
+
+    // Bumped on every rebuild so stale builds get thrown away
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Build build;
+
+    public WordIndex(List<String> lines) {
+        rebuild(lines);
+    }
+
+    /**
+     * Throws the index away and builds it again in the background.
+     */
+    public void rebuild(List<String> lines) {
+        words = null;
+        pendingUpdates.clear(); // The snapshot already has them
+        int currentGeneration = generation.incrementAndGet();
+        List<String> snapshot = new ArrayList<>(lines);
+
+        executor.execute(() -> {
+            TreeMap<String, Lines> words = new TreeMap<>();
+            int[] ids = new int[snapshot.size() + 16];
+            long[] labels = new long[ids.length];
+            for (int y = 0; y < snapshot.size(); y++) {
+                // Don't bother finishing if the content changed again
+                if ((y & 4095) == 0 && generation.get() != currentGeneration)
+                    return;
+
+                ids[y] = y;
+                labels[y] = (y + 1) * LABEL_GAP;
+                String line = snapshot.get(y);
+                for (long word = nextWord(line, 0); word != -1; word = nextWord(line, SearchEngine.column(word))) {
+                    String text = line.substring(SearchEngine.line(word), SearchEngine.column(word));
+                    words.computeIfAbsent(text, key -> new Lines()).append(y);
+                }
+            }
+
+            build = new Build(currentGeneration, words, ids, labels, snapshot.size());
+        });
+    }
+
+    /**
+     * Returns true if the index is up to date, picking up the background build if
+     * it just finished.
+     */
+    public boolean isReady() {
+        if (words != null)
+            return true;
+
+        Build build = this.build;
+        if (build == null || build.generation != generation.get())
+            return false;
+
+        this.build = null;
+        words = build.words;
+        ids = build.ids;
+        labels = build.labels;
+        lineCount = build.lineCount;
+        nextId = lineCount;
+        freeCount = 0;
+        for (Update update : pendingUpdates)
+            apply(update.oldLines, update.newLines, update.start);
+        pendingUpdates.clear();
+        return true;
+    }
+
+    /**
+     * Called after lines [start, oldEnd) of {@code previous} were replaced by
+     * lines [start, newEnd) of {@code lines}.
+     */
+    public void update(List<String> previous, List<String> lines, int start, int oldEnd, int newEnd) {
+        if (!isReady()) {
+            // Only the changed lines are kept, the build has everything else
+            pendingUpdates.add(new Update(new ArrayList<>(previous.subList(start, oldEnd)),
+                    new ArrayList<>(lines.subList(start, newEnd)), start));
+            return;
+        }
+
+        apply(previous.subList(start, oldEnd), lines.subList(start, newEnd), start);
+        // Shouldn't happen, but a wrong index is worse than a slow one
+        if (lineCount != lines.size())
+            rebuild(lines);
+    }
+
+    // oldLines starting at line start were replaced by newLines
+    private void apply(List<String> oldLines, List<String> newLines, int start) {
+        int common = Math.min(oldLines.size(), newLines.size());
+
+        // Lines that are still there keep their ids, only their words change
+        for (int i = 0; i < common; i++) {
+            int id = ids[start + i];
+            Set<String> oldWords = wordsIn(oldLines.get(i));
+            Set<String> newWords = wordsIn(newLines.get(i));
+            for (String word : oldWords)
+                if (!newWords.contains(word))
+                    removeLine(word, id);
+            for (String word : newWords)
+                if (!oldWords.contains(word))
+                    addLine(word, id);
+        }
+
+        int removed = oldLines.size() - common;
+        if (removed > 0) {
+            for (int i = common; i < oldLines.size(); i++) {
+                int id = ids[start + i];
+                for (String word : wordsIn(oldLines.get(i)))
+                    removeLine(word, id);
+                freeId(id);
+            }
+
+            int from = start + common;
+            System.arraycopy(ids, from + removed, ids, from, lineCount - from - removed);
+            lineCount -= removed;
+        }
+
+        int added = newLines.size() - common;
+        if (added > 0) {
+            int from = start + common;
+            if (lineCount + added > ids.length)
+                ids = Arrays.copyOf(ids, Math.max(ids.length * 2, lineCount + added));
+            System.arraycopy(ids, from, ids, from + added, lineCount - from);
+            lineCount += added;
+            for (int i = from; i < from + added; i++)
+                ids[i] = newId();
+            label(from, from + added);
+
+            for (int i = common; i < newLines.size(); i++)
+                for (String word : wordsIn(newLines.get(i)))
+                    addLine(word, ids[start + i]);
+        }
+    }
+
+    // Gives lines [from, to) labels between the ones on either side. If they
+    // don't fit, the lines around them are spread out too, over a wider and
+    // wider range until there's room. Ids keep their order, so the words'
+    // lists stay sorted.
+    private void label(int from, int to) {
+        int grow = 1;
+        while (true) {
+            long low = from > 0 ? labels[ids[from - 1]] : 0;
+            long high = to < lineCount ? labels[ids[to]] : Long.MAX_VALUE;
+            long gap = (high - low) / (to - from + 1);
+            if (gap >= MIN_LABEL_GAP || (from == 0 && to == lineCount)) {
+                for (int i = from; i < to; i++)
+                    labels[ids[i]] = low + gap * (i - from + 1);
+                return;
+            }
+
+            from = Math.max(from - grow, 0);
+            to = Math.min(to + grow, lineCount);
+            grow *= 2;
+        }
+    }
+
+    private int newId() {
+        if (freeCount > 0)
+            return freeIds[--freeCount];
+
+        if (nextId == labels.length)
+            labels = Arrays.copyOf(labels, labels.length * 2);
+        return nextId++;
+    }
+
+    private void freeId(int id) {
+        if (freeCount == freeIds.length)
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    // Where in wordLines the first id with a label of at least label is
+    private int search(Lines wordLines, long label) {
+        int low = 0, high = wordLines.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (labels[wordLines.ids[middle]] < label)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    // The line an id is on
+    private int lineOf(int id) {
+        long label = labels[id];
+        int low = 0, high = lineCount - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (labels[ids[middle]] < label)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    private void addLine(String word, int id) {
+        Lines wordLines = words.computeIfAbsent(word, key -> new Lines());
+        int index = search(wordLines, labels[id]);
+        if (index == wordLines.size || wordLines.ids[index] != id)
+            wordLines.insert(index, id);
+    }
+
+    private void removeLine(String word, int id) {
+        Lines wordLines = words.get(word);
+        if (wordLines == null)
+            return;
+
+        int index = search(wordLines, labels[id]);
+        if (index < wordLines.size && wordLines.ids[index] == id)
+            wordLines.removeAt(index);
+        if (wordLines.size == 0)
+            words.remove(word);
+    }
+
+    /**
+     * Returns how many lines {@code word} is on. Only valid if
+     * {@link #isReady()}.
+     */
+    public int count(String word) {
+        Lines wordLines = words.get(word);
+        return wordLines == null ? 0 : wordLines.size;
+    }
+
+    /**
+     * Returns the first line after {@code y} that has {@code word} on it,
+     * wrapping around to the top, or -1 if no line does.
+     */
+    public int nextLine(String word, int y) {
+        Lines wordLines = words.get(word);
+        if (wordLines == null)
+            return -1;
+
+        int index = search(wordLines, labels[ids[y]] + 1);
+        return lineOf(wordLines.ids[index == wordLines.size ? 0 : index]);
+    }
+
+    /**
+     * Returns the last line before {@code y} that has {@code word} on it,
+     * wrapping around to the bottom, or -1 if no line does.
+     */
+    public int previousLine(String word, int y) {
+        Lines wordLines = words.get(word);
+        if (wordLines == null)
+            return -1;
+
+        int index = search(wordLines, labels[ids[y]]);
+        return lineOf(wordLines.ids[index == 0 ? wordLines.size - 1 : index - 1]);
+    }
+
+    /**
+     * Returns every word that starts with {@code prefix} (other than the prefix
+     * itself), sorted.
+     */
+    public List<String> complete(String prefix) {
+        List<String> completions = new ArrayList<>();
+        for (String word : words.subMap(prefix, false, prefix + Character.MAX_VALUE, false).keySet())
+            completions.add(word);
+
+        return completions;
+    }
+
+    /**
+     * Finds the first word in {@code line} at or after {@code from}. Returns
+     * where it starts and ends packed like {@link SearchEngine#position(int, int)}
+     * (start << 32 | end), or -1 if there isn't one.
+     */
+    public static long nextWord(String line, int from) {
+        int length = line.length();
+        int start = from;
+        while (start < length && !isWordType(LineTokenizer.classify(line.charAt(start))))
+            start++;
+        if (start == length)
+            return -1;
+
+        int type = LineTokenizer.classify(line.charAt(start));
+        int end = start + 1;
+        while (end < length && LineTokenizer.classify(line.charAt(end)) == type)
+            end++;
+
+        return SearchEngine.position(start, end);
+    }
+
+    private static boolean isWordType(int type) {
+        return type == LineTokenizer.WORD || type == LineTokenizer.NUMBER;
+    }
+
+    private static Set<String> wordsIn(String line) {
+        Set<String> words = new HashSet<>();
+        for (long word = nextWord(line, 0); word != -1; word = nextWord(line, SearchEngine.column(word)))
+            words.add(line.substring(SearchEngine.line(word), SearchEngine.column(word)));
+
+        return words;
+    }
+}